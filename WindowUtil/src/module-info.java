@@ -4,6 +4,7 @@ module avi.utils.window
 	exports window;
 	
 	requires java.base;
+	requires java.net.http;
 	requires avi.utils.throwing;
 	requires transitive java.desktop;
 	requires transitive com.sun.jna.platform;
@@ -0,0 +1,69 @@
+package window;
+
+/**
+ * An action sequence posted to the key {@link Server}, along with the title of
+ * the window it is meant for. Intentionally package protected.
+ * 
+ * @author ratha
+ */
+final class Action
+{
+	final String title;
+	final String sequence;
+	/**
+	 * Sequences of higher priority are handed out first
+	 */
+	final int priority;
+	/**
+	 * The time after which the sequence is dropped rather than handed out, in
+	 * milliseconds since the epoch, or 0 if it never expires
+	 */
+	final long deadline;
+	/**
+	 * The key under which the sequence replaces a sequence queued earlier for
+	 * the same window and not yet handed out, or {@code null} if it does not
+	 */
+	final String key;
+	/**
+	 * When the action was accepted, as given by {@link System#nanoTime()}
+	 */
+	final long enqueued = System.nanoTime();
+	/**
+	 * The number of the action in the {@link ActionLog}, if it is logged
+	 */
+	long lsn = -1;
+	
+	Action(String title, String sequence)
+	{
+		this(title, sequence, 0, 0, null);
+	}
+	
+	Action(String title, String sequence, int priority, long deadline, String key)
+	{
+		this.title = title;
+		this.sequence = sequence;
+		this.priority = priority;
+		this.deadline = deadline;
+		this.key = key;
+	}
+	
+	/**
+	 * @param now
+	 *            The current time, in milliseconds since the epoch
+	 * @return Whether the deadline of the sequence has passed
+	 */
+	boolean expired(long now)
+	{
+		return deadline != 0 && now > deadline;
+	}
+	
+	/**
+	 * @return The action in the form KeySender reads it,
+	 *         {@code title=sequence}
+	 */
+	@Override
+	public String toString()
+	{
+		return title + "=" + sequence;
+	}
+}
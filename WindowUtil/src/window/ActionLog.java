@@ -0,0 +1,489 @@
+package window;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * A write-ahead log of queued action sequences, so that sequences accepted but
+ * not yet picked up survive a restart of the JVM. Intentionally package
+ * protected.
+ * <p>
+ * The log is a directory of fixed size, memory-mapped segment files named
+ * {@code actions-<segment number>.log}. Every accepted action sequence
+ * is appended as a record holding a sequence number, and every sequence handed
+ * out is checkpointed by appending a record naming that number. On startup,
+ * the sequences without a checkpoint are replayed in the order they were
+ * accepted, and appending continues in a new segment. A segment is deleted
+ * once every sequence in it, and in the segments before it, has been handed
+ * out. A sequence handed out just before a crash may be replayed, since its
+ * checkpoint is only made durable with the next commit.
+ * <p>
+ * Appending only writes to memory. {@link #commit(long)} makes appended
+ * records durable, and is a group commit: one thread forces the segment to
+ * disk for every record appended so far, while the threads that arrive in the
+ * meantime wait to be covered by the next force.
+ * <p>
+ * Each record is laid out as
+ * 
+ * <pre>
+ * int length    bytes after the checksum
+ * int crc       CRC32C of those bytes
+ * byte type     ACTION, SCHEDULED, KEYED or CONSUMED
+ * long number   the sequence number
+ * int priority, long deadline                      SCHEDULED and KEYED
+ * int keyLength, byte[] key                        UTF-8, KEYED only
+ * int titleLength, byte[] title, byte[] sequence   UTF-8, all but CONSUMED
+ * </pre>
+ * 
+ * Sequences with a coalescing key are logged as KEYED records, so that they
+ * still replace one another once replayed. Of the others, those with the
+ * default priority and no deadline are logged as ACTION records, and the rest
+ * as SCHEDULED records.
+ * 
+ * A length of 0 marks the end of the records in a segment.
+ * 
+ * @author ratha
+ */
+final class ActionLog
+{
+	private static final byte ACTION = 1;
+	private static final byte CONSUMED = 2;
+	private static final byte SCHEDULED = 3;
+	private static final byte KEYED = 4;
+	private static final int HEADER = 8;
+	private final Path directory;
+	private final int segmentSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition synced = lock.newCondition();
+	/**
+	 * The segments holding sequences not yet handed out, oldest first, ending
+	 * with the one being appended to
+	 */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	/**
+	 * Fully consumed segment files that could not be deleted yet, because the
+	 * operating system holds them open while they are mapped
+	 */
+	private final List<Path> obsolete = new ArrayList<>();
+	private final List<Action> replayed = new ArrayList<>();
+	private final CRC32C crc = new CRC32C();
+	private Segment active;
+	/**
+	 * The number of the next segment file
+	 */
+	private long segment;
+	private long next;
+	private long durable;
+	private boolean syncing;
+	
+	private ActionLog(Path directory, int segmentSize)
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * Opens the log in the given directory, replaying what was left in it
+	 * 
+	 * @param directory
+	 *            The directory holding the segment files, which is created if
+	 *            need be
+	 * @param segmentSize
+	 *            How many bytes each segment file holds
+	 * @return The log, whose unconsumed sequences are given by
+	 *         {@link #replayed()}
+	 */
+	static ActionLog open(Path directory, int segmentSize) throws IOException
+	{
+		var log = new ActionLog(directory, Math.max(4096, segmentSize));
+		Files.createDirectories(directory);
+		log.replay();
+		Runtime.getRuntime().addShutdownHook(new Thread(log::close, "action-log-close"));
+		return log;
+	}
+	
+	/**
+	 * Opens the log configured by {@code action-log-dir}
+	 * 
+	 * @return The log, or {@code null} if persistence is off or the log could
+	 *         not be opened
+	 */
+	static ActionLog open()
+	{
+		String directory = Config.read("action-log-dir", String::valueOf, "");
+		if(directory.isEmpty())
+			return null;
+		try
+		{
+			return open(Path.of(directory), Config.readInt("action-log-segment-size", 1 << 24));
+		}
+		catch(IOException e)
+		{
+			System.err.println("Action log disabled: could not open " + directory + ": " + e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads every segment in order, keeping the sequences that were never
+	 * checkpointed, then starts a new segment
+	 */
+	private void replay() throws IOException
+	{
+		List<Path> files;
+		try (Stream<Path> listing = Files.list(directory))
+		{
+			files = listing.filter((f) -> f.getFileName().toString().matches("actions-\\d{20}\\.log"))
+				.sorted().collect(Collectors.toList());
+		}
+		var pending = new LinkedHashMap<Long, Action>();
+		var owners = new LinkedHashMap<Long, Segment>();
+		for(Path file : files)
+		{
+			var segment = new Segment(file, Long.MAX_VALUE);
+			segments.add(segment);
+			this.segment = Math.max(this.segment, segmentNumber(file) + 1);
+			ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+			Record record;
+			while(( record = read(bytes) ) != null)
+			{
+				next = Math.max(next, record.number + 1);
+				if(record.action != null)
+				{
+					record.action.lsn = record.number;
+					segment.first = Math.min(segment.first, record.number);
+					pending.put(record.number, record.action);
+					owners.put(record.number, segment);
+					++segment.outstanding;
+				}
+				else if(pending.remove(record.number) != null)
+					--owners.remove(record.number).outstanding;
+			}
+		}
+		replayed.addAll(pending.values());
+		durable = next - 1;
+		roll(0);
+		deleteConsumed();
+	}
+	
+	/**
+	 * @return The sequences which were accepted but never handed out before
+	 *         the log was last closed, in the order they were accepted
+	 */
+	List<Action> replayed()
+	{
+		return replayed;
+	}
+	
+	/**
+	 * Reads the record at the buffer's position, advancing past it
+	 * 
+	 * @return The record, or {@code null} at the end of the segment or at a
+	 *         record torn by a crash
+	 */
+	private Record read(ByteBuffer bytes)
+	{
+		if(bytes.remaining() < HEADER)
+			return null;
+		int length = bytes.getInt();
+		int checksum = bytes.getInt();
+		if(length < 9 || length > bytes.remaining())
+			return null;
+		crc.reset();
+		crc.update(bytes.array(), bytes.position(), length);
+		if((int)crc.getValue() != checksum)
+			return null;
+		int end = bytes.position() + length;
+		byte type = bytes.get();
+		long number = bytes.getLong();
+		Action action = null;
+		if(type == ACTION || type == SCHEDULED || type == KEYED)
+		{
+			int priority = type != ACTION ? bytes.getInt() : 0;
+			long deadline = type != ACTION ? bytes.getLong() : 0;
+			String key = null;
+			if(type == KEYED)
+			{
+				int keyLength = bytes.getInt();
+				key = new String(bytes.array(), bytes.position(), keyLength, StandardCharsets.UTF_8);
+				bytes.position(bytes.position() + keyLength);
+			}
+			int titleLength = bytes.getInt();
+			String title = new String(bytes.array(), bytes.position(), titleLength, StandardCharsets.UTF_8);
+			int sequenceStart = bytes.position() + titleLength;
+			action = new Action(title,
+				new String(bytes.array(), sequenceStart, end - sequenceStart, StandardCharsets.UTF_8),
+				priority, deadline, key);
+		}
+		bytes.position(end);
+		return new Record(number, action);
+	}
+	
+	/**
+	 * Appends an accepted action sequence, numbering it. The record is not
+	 * durable until {@link #commit(long)} returns for that number.
+	 */
+	void append(Action action) throws IOException
+	{
+		byte[] title = action.title.getBytes(StandardCharsets.UTF_8);
+		byte[] sequence = action.sequence.getBytes(StandardCharsets.UTF_8);
+		byte[] key = action.key == null ? null : action.key.getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try
+		{
+			boolean scheduled = key != null || action.priority != 0 || action.deadline != 0;
+			ByteBuffer record = reserve(9 + ( scheduled ? 12 : 0 ) + ( key != null ? 4 + key.length : 0 ) + 4
+				+ title.length + sequence.length);
+			action.lsn = next++;
+			if(key != null)
+				record.put(KEYED).putLong(action.lsn).putInt(action.priority).putLong(action.deadline)
+					.putInt(key.length).put(key);
+			else if(scheduled)
+				record.put(SCHEDULED).putLong(action.lsn).putInt(action.priority).putLong(action.deadline);
+			else
+				record.put(ACTION).putLong(action.lsn);
+			record.putInt(title.length).put(title).put(sequence);
+			seal(record);
+			++active.outstanding;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Checkpoints an action sequence as handed out. Failing to do so is only
+	 * reported, since it can at worst cause the sequence to be replayed.
+	 */
+	void consumed(Action action)
+	{
+		lock.lock();
+		try
+		{
+			ByteBuffer record = reserve(9);
+			record.put(CONSUMED).putLong(action.lsn);
+			seal(record);
+			// the segment holding the sequence is the newest whose first sequence
+			// is not after it
+			for(var i = segments.descendingIterator(); i.hasNext();)
+			{
+				Segment segment = i.next();
+				if(segment.first <= action.lsn)
+				{
+					--segment.outstanding;
+					break;
+				}
+			}
+			deleteConsumed();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not checkpoint action sequence " + action.lsn + ": " + e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Makes room for a record in the active segment, rolling over to a new
+	 * segment if it does not fit. Holds the lock.
+	 * 
+	 * @return A view of the active segment positioned after the record header
+	 */
+	private ByteBuffer reserve(int length) throws IOException
+	{
+		// leave room for the header of the end marker after the record
+		if(active.buffer.remaining() < HEADER + length + HEADER)
+			roll(HEADER + length + HEADER);
+		ByteBuffer record = active.buffer.duplicate();
+		record.position(active.buffer.position() + HEADER);
+		return record;
+	}
+	
+	/**
+	 * Writes the header of a record just filled in, so that it may be read back
+	 */
+	private void seal(ByteBuffer record)
+	{
+		int start = active.buffer.position();
+		int length = record.position() - start - HEADER;
+		crc.reset();
+		ByteBuffer body = record.duplicate();
+		body.position(start + HEADER).limit(record.position());
+		crc.update(body);
+		active.buffer.putInt(start + 4, (int)crc.getValue());
+		active.buffer.putInt(start, length);
+		active.buffer.position(record.position());
+	}
+	
+	/**
+	 * Forces the active segment, if any, and starts a new one. Holds the lock.
+	 * 
+	 * @param minimum
+	 *            How many bytes the new segment must hold at least
+	 */
+	private void roll(int minimum) throws IOException
+	{
+		if(active != null)
+		{
+			active.buffer.force();
+			active.buffer = null;
+			durable = next - 1;
+		}
+		Path file = directory.resolve(String.format("actions-%020d.log", segment++));
+		try (var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+			StandardOpenOption.WRITE))
+		{
+			active = new Segment(file, next);
+			active.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minimum));
+		}
+		segments.add(active);
+	}
+	
+	/**
+	 * Deletes the oldest segments for as long as every sequence in them has
+	 * been handed out. Holds the lock.
+	 */
+	private void deleteConsumed()
+	{
+		while(segments.peek() != active && segments.peek().outstanding == 0)
+			obsolete.add(segments.poll().file);
+		obsolete.removeIf((file) ->
+		{
+			try
+			{
+				Files.deleteIfExists(file);
+				return true;
+			}
+			catch(IOException e)
+			{
+				return false; // still mapped; try again later
+			}
+		});
+	}
+	
+	/**
+	 * Waits until every record up to the given sequence number is on disk,
+	 * forcing the log on behalf of every thread waiting if no other thread is
+	 * already doing so
+	 * 
+	 * @param lsn
+	 *            The sequence number of the last record to make durable
+	 */
+	void commit(long lsn) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			while(durable < lsn)
+			{
+				if(syncing)
+				{
+					synced.awaitUninterruptibly();
+					continue;
+				}
+				// lead a group commit covering everything appended so far
+				syncing = true;
+				long target = next - 1;
+				MappedByteBuffer buffer = active.buffer;
+				lock.unlock();
+				try
+				{
+					buffer.force();
+				}
+				finally
+				{
+					lock.lock();
+					syncing = false;
+					synced.signalAll();
+				}
+				durable = Math.max(durable, target);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Forces whatever is left in memory to disk
+	 */
+	void close()
+	{
+		lock.lock();
+		try
+		{
+			if(active.buffer != null)
+				active.buffer.force();
+			durable = next - 1;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	private static long segmentNumber(Path file)
+	{
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring("actions-".length(), name.length() - ".log".length()));
+	}
+	
+	/**
+	 * A segment file, along with how many of its sequences are still queued
+	 */
+	private static final class Segment
+	{
+		final Path file;
+		/**
+		 * The number of the first sequence appended to the segment, or
+		 * {@link Long#MAX_VALUE} if it holds only checkpoints
+		 */
+		long first;
+		int outstanding;
+		/**
+		 * The mapping of the segment, while it is being appended to
+		 */
+		MappedByteBuffer buffer;
+		
+		Segment(Path file, long first)
+		{
+			this.file = file;
+			this.first = first;
+		}
+	}
+	
+	private static final class Record
+	{
+		final long number;
+		/**
+		 * The sequence accepted, or {@code null} for a checkpoint
+		 */
+		final Action action;
+		
+		Record(long number, Action action)
+		{
+			this.number = number;
+			this.action = action;
+		}
+	}
+}
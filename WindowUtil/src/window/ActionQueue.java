@@ -0,0 +1,1022 @@
+package window;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * The queue of action sequences waiting to be picked up by KeySender.
+ * Consumers may park on the queue until a sequence arrives, and every offered
+ * sequence wakes exactly one parked consumer. Intentionally package protected.
+ * <p>
+ * Sequences are partitioned by the title of the window they target. Each
+ * partition is first in, first out, and partitions take turns handing out
+ * sequences, so that a window with a long backlog cannot delay the sequences
+ * meant for other windows. A partition with weight {@code w} hands out up to
+ * {@code w} sequences per turn.
+ * <p>
+ * Sequences posted with a higher priority go ahead of the rest: within a
+ * partition, before any sequence of lower priority, and across partitions, by
+ * giving the turn to a partition whose next sequence outranks those of the
+ * partitions ahead of it. Sequences whose deadline has passed are dropped,
+ * rather than handed out.
+ * <p>
+ * A sequence offered with a coalescing key replaces the sequence queued
+ * earlier with the same key for the same window, if that one has not been
+ * handed out yet, taking its place in the queue. Replacing a sequence needs no
+ * room in the queue.
+ * <p>
+ * If the queue is given a {@link Pacer}, a partition whose window is over its
+ * rate passes its turn to the next partition with a sequence to hand out, and
+ * consumers wait for a window's budget to refill only when every partition
+ * with sequences is over its rate.
+ * <p>
+ * The queue holds at most a fixed number of sequences. Offers that would
+ * overflow it are refused outright rather than waiting for room, so that
+ * producers can be told to back off while KeySender catches up.
+ * <p>
+ * If the queue is given an {@link ActionLog}, every sequence queued is
+ * appended to it, and every sequence handed out is checkpointed in it, in the
+ * same order as the queue sees them. Consumers which confirm execution, such
+ * as push consumers, may instead take sequences unchecked and
+ * {@link #checkpoint(Action) checkpoint} them once executed. Sequences left
+ * in the log by a previous run are queued again when the queue is created.
+ * <p>
+ * Sequences may also be leased rather than taken, so that several consumers
+ * can share the queue without losing what a failed consumer had in hand. A
+ * leased sequence is hidden for a visibility timeout, and is only checkpointed
+ * once the lease is acknowledged; a lease that runs out puts its sequence back
+ * at the front of its partition, to be handed out again. While one of its
+ * sequences is leased, a partition sits out of the rotation, so that the
+ * sequences for any one window are executed in order however many consumers
+ * there are.
+ * 
+ * @author ratha
+ */
+final class ActionQueue
+{
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Condition idle = lock.newCondition();
+	private final Map<String, Partition> partitions = new HashMap<>();
+	/**
+	 * The partitions holding sequences, in the order they will take turns
+	 */
+	private final ArrayDeque<Partition> rotation = new ArrayDeque<>();
+	/**
+	 * The leases not yet acknowledged nor run out, by id
+	 */
+	private final Map<Long, Lease> leases = new HashMap<>();
+	/**
+	 * The same leases, soonest to run out first. Leases are dropped from here
+	 * as soon as they are acknowledged, so that it holds no more leases than
+	 * are outstanding.
+	 */
+	private final TreeSet<Lease> expiries = new TreeSet<>(
+		Comparator.comparingLong((Lease lease) -> lease.deadline).thenComparingLong((lease) -> lease.id));
+	private final ToIntFunction<String> weights;
+	private final int capacity;
+	private final Pacer pacer;
+	private final ActionLog log;
+	private int size;
+	/**
+	 * How many of the queued sequences belong to partitions sitting out of the
+	 * rotation while one of their sequences is leased
+	 */
+	private int blocked;
+	private long lastLease;
+	/**
+	 * How many sequences have been dropped for missing their deadline
+	 */
+	private long expired;
+	/**
+	 * How many sequences have been replaced by one with the same coalescing key
+	 */
+	private long coalesced;
+	/**
+	 * How many nanoseconds until the first partition passed over by the last
+	 * {@link #pick()} for being over its rate may hand out a sequence
+	 */
+	private long paced;
+	private ReadyState state = ReadyState.BUSY;
+	
+	/**
+	 * Creates an unbounded queue in which every partition has weight 1
+	 */
+	ActionQueue()
+	{
+		this(Integer.MAX_VALUE, (title) -> 1, null, null);
+	}
+	
+	/**
+	 * @param capacity
+	 *            The most action sequences the queue may hold
+	 * @param weights
+	 *            Gives the weight of the partition for each window title
+	 * @param pacer
+	 *            Limits how quickly sequences are handed out for each window,
+	 *            or {@code null} to hand them out as quickly as they are asked
+	 *            for
+	 * @param log
+	 *            The log to persist queued sequences in, or {@code null} to keep
+	 *            them in memory only
+	 */
+	ActionQueue(int capacity, ToIntFunction<String> weights, Pacer pacer, ActionLog log)
+	{
+		this.capacity = Math.max(1, capacity);
+		this.weights = weights;
+		this.pacer = pacer;
+		this.log = log;
+		if(log != null)
+			for(Action sequence : log.replayed())
+			{
+				// a crash may have kept the record of a sequence since replaced
+				Action superseded = superseded(sequence);
+				if(superseded != null)
+					replace(superseded, sequence);
+				else
+					add(sequence);
+			}
+	}
+	
+	/**
+	 * Queues an action sequence, waking one consumer waiting for it
+	 * 
+	 * @param sequence
+	 *            The action sequence
+	 * @return Whether the sequence was queued, which it is not if the queue is
+	 *         full
+	 * @throws IOException
+	 *             If the sequence could not be logged, in which case it is not
+	 *             queued
+	 * @see ActionQueue#commit(Action)
+	 */
+	boolean offer(Action sequence) throws IOException
+	{
+		bucket(sequence.title);
+		lock.lock();
+		try
+		{
+			Action superseded = superseded(sequence);
+			if(superseded == null && size >= capacity)
+				return false;
+			if(log != null)
+				log.append(sequence);
+			if(superseded != null)
+			{
+				replace(superseded, sequence);
+				return true;
+			}
+			add(sequence);
+			state = ReadyState.BUSY;
+			available.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues several action sequences at once, so that consumers see either all
+	 * or none of them, waking one consumer for each
+	 * 
+	 * @param batch
+	 *            The action sequences
+	 * @return Whether the sequences were queued, which none of them are if
+	 *         there is not room for all of them, without counting the
+	 *         sequences they would replace
+	 */
+	boolean offerAll(List<Action> batch) throws IOException
+	{
+		for(Action sequence : batch)
+			bucket(sequence.title);
+		lock.lock();
+		try
+		{
+			if(batch.size() > capacity - size)
+				return false;
+			if(batch.isEmpty())
+				return true;
+			if(log != null)
+				append(batch);
+			int added = 0;
+			for(Action sequence : batch)
+			{
+				Action superseded = superseded(sequence);
+				if(superseded != null)
+					replace(superseded, sequence);
+				else
+				{
+					add(sequence);
+					++added;
+				}
+			}
+			if(added > 0)
+				state = ReadyState.BUSY;
+			for(int i = 0; i < added; ++i)
+				available.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues again sequences which were handed out but never executed, ahead of
+	 * the sequences queued for the same windows since. The capacity of the
+	 * queue does not apply, since the sequences were accepted before.
+	 * 
+	 * @param sequences
+	 *            The sequences, in the order they were handed out
+	 */
+	void restore(List<Action> sequences) throws IOException
+	{
+		restore(sequences, true);
+	}
+	
+	/**
+	 * Queues again sequences which were handed out but never executed
+	 * 
+	 * @param sequences
+	 *            The sequences, in the order they were handed out
+	 * @param checkpointed
+	 *            Whether the sequences were checkpointed when handed out, in
+	 *            which case they are logged afresh, rather than left in the log
+	 *            under their first record
+	 * @see ActionQueue#restore(List)
+	 */
+	void restore(List<Action> sequences, boolean checkpointed) throws IOException
+	{
+		for(Action sequence : sequences)
+			bucket(sequence.title);
+		lock.lock();
+		try
+		{
+			if(sequences.isEmpty())
+				return;
+			if(log != null && checkpointed)
+				append(sequences);
+			for(int i = sequences.size() - 1; i >= 0; --i)
+			{
+				Action sequence = sequences.get(i);
+				Partition partition = partitions.get(sequence.title);
+				if(partition == null)
+				{
+					partition = new Partition(sequence.title, Math.max(1, weights.applyAsInt(sequence.title)),
+						bucket(sequence.title));
+					partitions.put(sequence.title, partition);
+					rotation.addFirst(partition);
+				}
+				partition.sequences.addFirst(sequence);
+				++size;
+				if(partition.lease != null)
+					++blocked;
+			}
+			state = ReadyState.BUSY;
+			for(int i = 0; i < sequences.size(); ++i)
+				available.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Logs sequences about to be queued, holding the lock. If one of them
+	 * cannot be logged, none of them is queued, so those logged before it are
+	 * checkpointed for them not to be replayed.
+	 */
+	private void append(List<Action> sequences) throws IOException
+	{
+		int logged = 0;
+		try
+		{
+			for(Action sequence : sequences)
+			{
+				log.append(sequence);
+				++logged;
+			}
+		}
+		catch(IOException e)
+		{
+			for(Action sequence : sequences.subList(0, logged))
+				log.consumed(sequence);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Waits until the given sequence, and every sequence queued before it, is
+	 * durable in the log. Returns at once if the queue is not logged.
+	 * 
+	 * @param sequence
+	 *            A sequence which was queued
+	 */
+	void commit(Action sequence) throws IOException
+	{
+		if(log != null)
+			log.commit(sequence.lsn);
+	}
+	
+	/**
+	 * Takes the next action sequence, waiting up to {@code timeout}
+	 * milliseconds for one to arrive. A consumer that finds nothing to do marks
+	 * the queue {@link ReadyState#READY READY}.
+	 * 
+	 * @param timeout
+	 *            How many milliseconds to wait for a sequence, or 0 to return
+	 *            immediately
+	 * @return The next action sequence, or {@code null} if none arrived in time
+	 */
+	Action poll(long timeout) throws InterruptedException
+	{
+		return poll(timeout, true);
+	}
+	
+	/**
+	 * Takes the next action sequence, waiting up to {@code timeout}
+	 * milliseconds for one to arrive
+	 * 
+	 * @param checkpoint
+	 *            Whether the sequence is checkpointed in the log as it is
+	 *            handed out, rather than by the consumer through
+	 *            {@link #checkpoint(Action)} once executed
+	 * @see ActionQueue#poll(long)
+	 */
+	Action poll(long timeout, boolean checkpoint) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			if(!await(timeout))
+				return null;
+			state = ReadyState.BUSY;
+			return next(checkpoint);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Checkpoints a sequence taken without checkpoint, now that it has been
+	 * executed, so that it is not replayed
+	 * 
+	 * @param sequence
+	 *            A sequence {@link #poll(long, boolean) polled} without
+	 *            checkpoint
+	 */
+	void checkpoint(Action sequence)
+	{
+		if(log != null)
+			log.consumed(sequence);
+	}
+	
+	/**
+	 * Takes up to {@code max} action sequences, waiting up to {@code timeout}
+	 * milliseconds for the first to arrive
+	 * 
+	 * @param max
+	 *            The most action sequences to take
+	 * @param timeout
+	 *            How many milliseconds to wait for a sequence, or 0 to return
+	 *            immediately
+	 * @return The action sequences taken, in the order their partitions take
+	 *         turns, which is empty if none arrived in time
+	 * @see ActionQueue#poll(long)
+	 */
+	List<Action> drain(int max, long timeout) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			if(!await(timeout))
+				return List.of();
+			state = ReadyState.BUSY;
+			var batch = new ArrayList<Action>(Math.min(max, size - blocked));
+			do
+				batch.add(next(true));
+			while(batch.size() < max && pick() != null);
+			return batch;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Leases the next action sequence, waiting up to {@code timeout}
+	 * milliseconds for one to arrive. The sequence is hidden from other
+	 * consumers, along with the rest of its window's partition, until the lease
+	 * is acknowledged or runs out.
+	 * 
+	 * @param visibility
+	 *            How many milliseconds the lease lasts unless acknowledged
+	 * @param timeout
+	 *            How many milliseconds to wait for a sequence, or 0 to return
+	 *            immediately
+	 * @return The lease, or {@code null} if no sequence arrived in time
+	 * @see ActionQueue#acknowledge(long)
+	 */
+	Lease lease(long visibility, long timeout) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			if(!await(timeout))
+				return null;
+			state = ReadyState.BUSY;
+			Partition partition = rotation.poll();
+			Action sequence = partition.sequences.poll();
+			--size;
+			if(partition.bucket != null)
+				partition.bucket.spend(System.nanoTime());
+			// the partition sits out until the lease ends, and then waits its turn afresh
+			partition.credit = partition.weight;
+			blocked += partition.sequences.size();
+			var lease = new Lease(++lastLease, sequence,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, visibility)));
+			partition.lease = lease;
+			leases.put(lease.id, lease);
+			expiries.add(lease);
+			return lease;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Ends a lease, now that its sequence has been executed, checkpointing the
+	 * sequence and letting the rest of its window's partition be handed out
+	 * 
+	 * @param id
+	 *            The id of the lease
+	 * @return Whether the lease was still held, which it is not if it ran out,
+	 *         in which case its sequence will be handed out again
+	 */
+	boolean acknowledge(long id)
+	{
+		lock.lock();
+		try
+		{
+			expire();
+			Lease lease = leases.remove(id);
+			if(lease == null)
+				return false;
+			expiries.remove(lease);
+			if(log != null)
+				log.consumed(lease.sequence);
+			release(lease, false);
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Puts the sequences of the leases that have run out back at the front of
+	 * their partitions, holding the lock
+	 */
+	private void expire()
+	{
+		long now = System.nanoTime();
+		while(!expiries.isEmpty() && expiries.first().deadline - now <= 0)
+		{
+			Lease lease = expiries.pollFirst();
+			leases.remove(lease.id);
+			partitions.get(lease.sequence.title).sequences.addFirst(lease.sequence);
+			++size;
+			++blocked;
+			release(lease, true);
+		}
+	}
+	
+	/**
+	 * Brings the partition of a lease that has ended back into the rotation,
+	 * holding the lock
+	 * 
+	 * @param first
+	 *            Whether the partition goes to the front of the rotation, as it
+	 *            does when its lease ran out, rather than the back
+	 */
+	private void release(Lease lease, boolean first)
+	{
+		Partition partition = partitions.get(lease.sequence.title);
+		partition.lease = null;
+		if(partition.sequences.isEmpty())
+		{
+			partitions.remove(partition.title);
+			return;
+		}
+		blocked -= partition.sequences.size();
+		if(first)
+			rotation.addFirst(partition);
+		else
+			rotation.add(partition);
+		state = ReadyState.BUSY;
+		for(int i = 0; i < partition.sequences.size(); ++i)
+			available.signal();
+	}
+	
+	/**
+	 * Waits, holding the lock, until a sequence can be handed out. A consumer
+	 * that finds nothing to do marks the queue {@link ReadyState#READY READY}.
+	 * 
+	 * @return Whether a sequence can be handed out, in which case its
+	 *         partition is at the front of the rotation
+	 */
+	private boolean await(long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		expire();
+		while(pick() == null)
+		{
+			// sequences held back only by their windows' rates are still to be done
+			if(state != ReadyState.READY && paced == Long.MAX_VALUE)
+			{
+				state = ReadyState.READY;
+				idle.signalAll();
+			}
+			if(nanos <= 0)
+				return false;
+			// wake up for the next lease to run out, or window to be under its
+			// rate, which might free a partition
+			long wait = Math.min(nanos, paced);
+			if(!expiries.isEmpty())
+				wait = Math.max(0, Math.min(wait, expiries.first().deadline - System.nanoTime()));
+			nanos -= wait - available.awaitNanos(wait);
+			expire();
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The sequence queued and not yet handed out that the given one
+	 *         would replace, or {@code null} if there is none
+	 */
+	private Action superseded(Action sequence)
+	{
+		if(sequence.key == null)
+			return null;
+		Partition partition = partitions.get(sequence.title);
+		return partition == null ? null : partition.sequences.keyed(sequence.key);
+	}
+	
+	/**
+	 * Puts a sequence in the place of the one it supersedes, holding the lock
+	 */
+	private void replace(Action superseded, Action sequence)
+	{
+		partitions.get(sequence.title).sequences.replace(superseded, sequence);
+		++coalesced;
+		if(log != null)
+			log.consumed(superseded);
+	}
+	
+	/**
+	 * Looks up the token bucket of a window, which offers do before taking the
+	 * lock, so that reading the window's rate never holds up consumers
+	 * 
+	 * @return The bucket, or {@code null} if the queue is not paced
+	 */
+	private Pacer.Bucket bucket(String title)
+	{
+		return pacer == null ? null : pacer.bucket(title);
+	}
+	
+	/**
+	 * Adds a sequence to the back of its partition, holding the lock
+	 */
+	private void add(Action sequence)
+	{
+		Partition partition = partitions.get(sequence.title);
+		if(partition == null)
+		{
+			partition = new Partition(sequence.title, Math.max(1, weights.applyAsInt(sequence.title)),
+				bucket(sequence.title));
+			partitions.put(sequence.title, partition);
+			rotation.add(partition);
+		}
+		partition.sequences.add(sequence);
+		++size;
+		if(partition.lease != null)
+			++blocked;
+	}
+	
+	/**
+	 * Drops the sequences whose deadline has passed from the front of the
+	 * partitions taking turns, then brings the partition with the most urgent
+	 * sequence to the front of the rotation, holding the lock. Of partitions
+	 * whose next sequences have the same priority, the one whose turn comes
+	 * first is chosen. Partitions over their window's rate are passed over.
+	 * 
+	 * @return The partition at the front of the rotation, or {@code null} if
+	 *         no partition may hand out a sequence
+	 */
+	private Partition pick()
+	{
+		paced = Long.MAX_VALUE;
+		if(size == blocked)
+			return null;
+		long now = System.currentTimeMillis();
+		long nanos = System.nanoTime();
+		Partition best = null;
+		for(var i = rotation.iterator(); i.hasNext();)
+		{
+			Partition partition = i.next();
+			while(!partition.sequences.isEmpty() && partition.sequences.peek().expired(now))
+			{
+				Action sequence = partition.sequences.poll();
+				--size;
+				++expired;
+				if(log != null)
+					log.consumed(sequence);
+			}
+			long delay;
+			if(partition.sequences.isEmpty())
+			{
+				i.remove();
+				partitions.remove(partition.title);
+			}
+			else if(partition.bucket != null && ( delay = partition.bucket.delay(nanos) ) > 0)
+				paced = Math.min(paced, delay);
+			else if(best == null || partition.sequences.peek().priority > best.sequences.peek().priority)
+				best = partition;
+		}
+		if(best != null && best != rotation.peek())
+		{
+			rotation.remove(best);
+			rotation.addFirst(best);
+		}
+		return best;
+	}
+	
+	/**
+	 * Takes the next sequence from the partition whose turn it is, holding the
+	 * lock. The partition must have been {@link #pick() picked}.
+	 * 
+	 * @param checkpoint
+	 *            Whether to checkpoint the sequence in the log
+	 */
+	private Action next(boolean checkpoint)
+	{
+		Partition partition = rotation.peek();
+		Action sequence = partition.sequences.poll();
+		--size;
+		if(partition.bucket != null)
+			partition.bucket.spend(System.nanoTime());
+		if(log != null && checkpoint)
+			log.consumed(sequence);
+		if(partition.sequences.isEmpty())
+		{
+			rotation.poll();
+			partitions.remove(partition.title);
+		}
+		else if(--partition.credit == 0)
+		{
+			// turn over: go to the back of the line with a fresh allowance
+			rotation.poll();
+			partition.credit = partition.weight;
+			rotation.add(partition);
+		}
+		return sequence;
+	}
+	
+	/**
+	 * @return Whether a consumer has asked for work since the last sequence was
+	 *         queued or handed out, and found none
+	 */
+	boolean ready()
+	{
+		lock.lock();
+		try
+		{
+			return state == ReadyState.READY;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until the queue becomes {@link ReadyState#READY READY}
+	 * 
+	 * @param timeout
+	 *            How many milliseconds to wait at most
+	 * @return Whether the queue became ready in time
+	 */
+	boolean awaitReady(long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		lock.lockInterruptibly();
+		try
+		{
+			while(state != ReadyState.READY)
+			{
+				if(nanos <= 0)
+					return false;
+				nanos = idle.awaitNanos(nanos);
+			}
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many action sequences have been dropped, rather than handed
+	 *         out, because their deadline had passed
+	 */
+	long expired()
+	{
+		lock.lock();
+		try
+		{
+			return expired;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many action sequences have been replaced, before being handed
+	 *         out, by one with the same coalescing key
+	 */
+	long coalesced()
+	{
+		lock.lock();
+		try
+		{
+			return coalesced;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops every queued sequence, and every leased sequence not yet
+	 * acknowledged, checkpointing them so that they are not replayed either
+	 * 
+	 * @return How many sequences were dropped
+	 */
+	int clear()
+	{
+		lock.lock();
+		try
+		{
+			int dropped = size + leases.size();
+			if(log != null)
+			{
+				for(Partition partition : partitions.values())
+					for(Action sequence; ( sequence = partition.sequences.poll() ) != null;)
+						log.consumed(sequence);
+				for(Lease lease : leases.values())
+					log.consumed(lease.sequence);
+			}
+			partitions.clear();
+			rotation.clear();
+			leases.clear();
+			expiries.clear();
+			size = 0;
+			blocked = 0;
+			return dropped;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many action sequences are waiting to be picked up, including
+	 *         those held back behind a leased sequence for the same window
+	 */
+	int size()
+	{
+		lock.lock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many action sequences are waiting to be picked up for each
+	 *         window title, in the order the partitions will take turns.
+	 *         Partitions held back by a lease come last.
+	 */
+	Map<String, Integer> depths()
+	{
+		lock.lock();
+		try
+		{
+			expire();
+			var depths = new LinkedHashMap<String, Integer>();
+			for(Partition partition : rotation)
+				depths.put(partition.title, partition.sequences.size());
+			for(Lease lease : leases.values())
+			{
+				Partition partition = partitions.get(lease.sequence.title);
+				if(!partition.sequences.isEmpty())
+					depths.put(partition.title, partition.sequences.size());
+			}
+			return depths;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * The sequences queued for one window title
+	 */
+	private static final class Partition
+	{
+		final String title;
+		final int weight;
+		/**
+		 * The token bucket of this partition's window, if the queue is paced
+		 */
+		final Pacer.Bucket bucket;
+		final Sequences sequences = new Sequences();
+		/**
+		 * How many more sequences this partition may hand out in its turn
+		 */
+		int credit;
+		/**
+		 * The lease on this partition's oldest sequence, if it is sitting out of
+		 * the rotation
+		 */
+		Lease lease;
+		
+		Partition(String title, int weight, Pacer.Bucket bucket)
+		{
+			this.title = title;
+			this.weight = weight;
+			this.bucket = bucket;
+			this.credit = weight;
+		}
+	}
+	
+	/**
+	 * The sequences of one partition, highest priority first, and first in,
+	 * first out among sequences of the same priority, along with those of
+	 * them that have a coalescing key
+	 */
+	private static final class Sequences
+	{
+		/**
+		 * The sequences of each priority, highest first
+		 */
+		private final TreeMap<Integer, ArrayDeque<Action>> levels =
+			new TreeMap<>(Comparator.reverseOrder());
+		/**
+		 * The sequences by coalescing key, created once there is one
+		 */
+		private Map<String, Action> keyed;
+		private int size;
+		
+		void add(Action sequence)
+		{
+			levels.computeIfAbsent(sequence.priority, (p) -> new ArrayDeque<>()).add(sequence);
+			++size;
+			if(sequence.key != null)
+				keyed().put(sequence.key, sequence);
+		}
+		
+		/**
+		 * Puts a sequence ahead of those of the same priority
+		 */
+		void addFirst(Action sequence)
+		{
+			levels.computeIfAbsent(sequence.priority, (p) -> new ArrayDeque<>()).addFirst(sequence);
+			++size;
+			// a sequence queued since with the same key is the newer one
+			if(sequence.key != null)
+				keyed().putIfAbsent(sequence.key, sequence);
+		}
+		
+		/**
+		 * @return The sequence with the given coalescing key, or {@code null}
+		 */
+		Action keyed(String key)
+		{
+			return keyed == null ? null : keyed.get(key);
+		}
+		
+		/**
+		 * Puts a sequence in the place of one with the same coalescing key. A
+		 * sequence of another priority goes behind those of its own priority
+		 * instead.
+		 */
+		void replace(Action superseded, Action sequence)
+		{
+			ArrayDeque<Action> level = levels.get(superseded.priority);
+			if(superseded.priority == sequence.priority)
+				for(int i = level.size(); i > 0; --i)
+				{
+					Action next = level.poll();
+					level.add(next == superseded ? sequence : next);
+				}
+			else
+			{
+				level.removeFirstOccurrence(superseded);
+				if(level.isEmpty())
+					levels.remove(superseded.priority);
+				levels.computeIfAbsent(sequence.priority, (p) -> new ArrayDeque<>()).add(sequence);
+			}
+			keyed.put(sequence.key, sequence);
+		}
+		
+		private Map<String, Action> keyed()
+		{
+			if(keyed == null)
+				keyed = new HashMap<>();
+			return keyed;
+		}
+		
+		Action peek()
+		{
+			return size == 0 ? null : levels.firstEntry().getValue().peek();
+		}
+		
+		Action poll()
+		{
+			if(size == 0)
+				return null;
+			ArrayDeque<Action> level = levels.firstEntry().getValue();
+			Action sequence = level.poll();
+			if(level.isEmpty())
+				levels.pollFirstEntry();
+			--size;
+			if(sequence.key != null)
+				keyed.remove(sequence.key, sequence);
+			return sequence;
+		}
+		
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+		
+		int size()
+		{
+			return size;
+		}
+	}
+	
+	/**
+	 * An action sequence handed out to a consumer, which must acknowledge it
+	 * before its deadline
+	 */
+	static final class Lease
+	{
+		final long id;
+		final Action sequence;
+		/**
+		 * When the lease runs out, as given by {@link System#nanoTime()}
+		 */
+		final long deadline;
+		
+		Lease(long id, Action sequence, long deadline)
+		{
+			this.id = id;
+			this.sequence = sequence;
+			this.deadline = deadline;
+		}
+	}
+}
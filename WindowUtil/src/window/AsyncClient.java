@@ -0,0 +1,193 @@
+package window;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client that sends key sequences to the key {@link Server} without waiting
+ * for the server to answer. Every request goes through one
+ * {@link HttpClient} shared by the whole JVM, which keeps its connections to
+ * the server open between requests, and completes a
+ * {@link CompletableFuture} once the server has answered.
+ * <p>
+ * Each client lets at most a fixed number of requests be in flight at once.
+ * Sending another blocks the caller until one of them completes, so that a
+ * producer cannot pile up more requests than the server can take.
+ * 
+ * @author ratha
+ */
+public final class AsyncClient
+{
+	private static final HttpClient http = HttpClient.newBuilder()
+		.version(HttpClient.Version.HTTP_1_1)
+		.connectTimeout(Duration.ofSeconds(5))
+		.build();
+	private final Semaphore inFlight;
+	private final Duration timeout;
+	private final OverloadPolicy policy;
+	
+	/**
+	 * Creates a client allowing 256 requests in flight, which gives up on a
+	 * request after 30 seconds and waits as long as the server asks while its
+	 * queue is full
+	 */
+	public AsyncClient()
+	{
+		this(256, Duration.ofSeconds(30), OverloadPolicy.BLOCK);
+	}
+	
+	/**
+	 * @param maxInFlight
+	 *            The most requests that may be in flight at once
+	 * @param timeout
+	 *            How long to wait for the server to answer each request before
+	 *            failing it with an {@link java.net.http.HttpTimeoutException}
+	 * @param policy
+	 *            What to do when the server's queue is full
+	 */
+	public AsyncClient(int maxInFlight, Duration timeout, OverloadPolicy policy)
+	{
+		this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+		this.timeout = Objects.requireNonNull(timeout);
+		this.policy = Objects.requireNonNull(policy);
+	}
+	
+	/**
+	 * Sends a key sequence
+	 * 
+	 * @return A future completed once the server has queued the key sequence,
+	 *         or completed exceptionally with a {@link QueueFullException} if
+	 *         the queue is full and the overload policy gives up, or an
+	 *         {@link IOException} if the server could not be reached or
+	 *         refused the request
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for a request in flight to
+	 *             complete
+	 */
+	public CompletableFuture<Void> postSequence(String title, String actionSequence)
+		throws InterruptedException
+	{
+		return post("/actionSequence", List.of(Map.entry(title, String.valueOf(actionSequence))));
+	}
+	
+	/**
+	 * Sends many key sequences in a single request. The server accepts either
+	 * all of them or none of them.
+	 * 
+	 * @param sequences
+	 *            The key sequences to send, as (title, sequence) pairs in the
+	 *            order in which they should be executed. Titles may repeat.
+	 * @return A future completed once the server has queued the key sequences
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for a request in flight to
+	 *             complete
+	 * @see AsyncClient#postSequence(String, String)
+	 */
+	public CompletableFuture<Void> postSequences(List<? extends Map.Entry<String, String>> sequences)
+		throws InterruptedException
+	{
+		return post("/actionSequence/batch", sequences);
+	}
+	
+	/**
+	 * Takes up to {@code max} key sequences off the server in a single request
+	 * 
+	 * @param max
+	 *            The most key sequences to take
+	 * @param wait
+	 *            How many milliseconds the server may wait for a key sequence
+	 *            if none is queued, or 0 to answer immediately. The client's
+	 *            timeout is extended by as much.
+	 * @return A future completed with the key sequences taken, as (title,
+	 *         sequence) pairs in the order the windows take turns
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for a request in flight to
+	 *             complete
+	 * @see Client#pollSequences(int, long)
+	 */
+	public CompletableFuture<List<Map.Entry<String, String>>> pollSequences(int max, long wait)
+		throws InterruptedException
+	{
+		HttpRequest request = request("/actionSequence/batch?max=" + max + "&wait=" + wait)
+			.timeout(timeout.plusMillis(Math.max(0, wait)))
+			.GET()
+			.build();
+		inFlight.acquire();
+		return http.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+			.thenCompose(AsyncClient::accepted)
+			.thenApply((response) -> Client.decode(response.body()))
+			.whenComplete((response, e) -> inFlight.release());
+	}
+	
+	/**
+	 * @return How many more requests may be sent before the caller has to wait
+	 */
+	public int available()
+	{
+		return inFlight.availablePermits();
+	}
+	
+	/**
+	 * Posts the given parameters to the server, form-encoded. The request holds
+	 * its place in flight while it is retried.
+	 */
+	private CompletableFuture<Void> post(String path, List<? extends Map.Entry<String, String>> params)
+		throws InterruptedException
+	{
+		HttpRequest request = request(path)
+			.timeout(timeout)
+			.header("Content-Type", "application/x-www-form-urlencoded")
+			.POST(HttpRequest.BodyPublishers.ofString(Client.encode(params)))
+			.build();
+		inFlight.acquire();
+		return send(request, 0).whenComplete((response, e) -> inFlight.release());
+	}
+	
+	/**
+	 * Sends a request, and sends it again as the overload policy directs while
+	 * the server's queue is full
+	 */
+	private CompletableFuture<Void> send(HttpRequest request, int attempt)
+	{
+		return http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenCompose((response) ->
+		{
+			if (response.statusCode() != 503)
+				return accepted(response).thenApply((accepted) -> null);
+			long retryAfter = 1000 * response.headers().firstValueAsLong("Retry-After").orElse(1);
+			long backoff = policy.backoff(attempt, retryAfter);
+			if (backoff < 0)
+				return CompletableFuture.failedFuture(new QueueFullException(retryAfter));
+			return CompletableFuture.supplyAsync(() -> null,
+				CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS))
+				.thenCompose((ignored) -> send(request, attempt + 1));
+		});
+	}
+	
+	private static HttpRequest.Builder request(String path)
+	{
+		return HttpRequest.newBuilder(URI.create("http://localhost:" + Server.PORT + path));
+	}
+	
+	/**
+	 * @return A future completed with the response if the server answered with
+	 *         success, and completed exceptionally with an
+	 *         {@link IOException} if it did not
+	 */
+	private static <T> CompletableFuture<HttpResponse<T>> accepted(HttpResponse<T> response)
+	{
+		if (response.statusCode() / 100 != 2)
+			return CompletableFuture.failedFuture(new IOException("Server returned HTTP response code: "
+				+ response.statusCode() + " for URL: " + response.uri()));
+		return CompletableFuture.completedFuture(response);
+	}
+}
@@ -0,0 +1,208 @@
+package window;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client that gathers the key sequences posted to it and sends them to the
+ * key {@link Server} in batches, so that callers posting in tight loops share
+ * the cost of each request. A batch is sent once {@code maxBatch} key
+ * sequences are waiting, or once the first of them has waited {@code linger}
+ * milliseconds, whichever comes first.
+ * <p>
+ * Posting only adds the key sequence to a lock-free buffer, and never waits
+ * for the server. Batches are sent one at a time, in the order their key
+ * sequences were posted, by a single daemon thread. The server accepts or
+ * refuses each batch whole, and the future returned for every key sequence in
+ * it completes accordingly.
+ * 
+ * @author ratha
+ */
+public final class BatchingClient implements AutoCloseable
+{
+	private final ConcurrentLinkedQueue<Pending> buffer = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger buffered = new AtomicInteger();
+	/**
+	 * Whether a batch is due to be sent once its first key sequence has waited
+	 * long enough
+	 */
+	private final AtomicBoolean lingering = new AtomicBoolean();
+	private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor((task) ->
+	{
+		var t = new Thread(task, "key-client-batcher");
+		t.setDaemon(true);
+		return t;
+	});
+	private final int maxBatch;
+	private final long linger;
+	private final OverloadPolicy policy;
+	private volatile boolean closed;
+	
+	/**
+	 * Creates a client sending up to 100 key sequences per batch, which waits
+	 * at most 5 milliseconds for a batch to fill, and follows the overload
+	 * policy set on {@link Client}
+	 */
+	public BatchingClient()
+	{
+		this(100, 5, Client.getOverloadPolicy());
+	}
+	
+	/**
+	 * @param maxBatch
+	 *            The most key sequences to send in one request
+	 * @param linger
+	 *            How many milliseconds a key sequence may wait for others to
+	 *            join its batch
+	 * @param policy
+	 *            What to do when the server's queue has no room for a batch
+	 */
+	public BatchingClient(int maxBatch, long linger, OverloadPolicy policy)
+	{
+		this.maxBatch = Math.max(1, maxBatch);
+		this.linger = Math.max(0, linger);
+		this.policy = Objects.requireNonNull(policy);
+	}
+	
+	/**
+	 * Adds a key sequence to the next batch
+	 * 
+	 * @return A future completed once the server has queued the batch holding
+	 *         the key sequence, or completed exceptionally with the reason the
+	 *         batch was not queued, such as a {@link QueueFullException}
+	 * @throws IllegalStateException
+	 *             If the client has been closed
+	 */
+	public CompletableFuture<Void> postSequence(String title, String actionSequence)
+	{
+		if (closed)
+			throw closedException();
+		var pending = new Pending(Map.entry(title, String.valueOf(actionSequence)));
+		buffer.add(pending);
+		try
+		{
+			if (buffered.incrementAndGet() == maxBatch)
+				sender.execute(this::send);
+			else if (lingering.compareAndSet(false, true))
+				sender.schedule(() ->
+				{
+					lingering.set(false);
+					send();
+				}, linger, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// closed meanwhile, after the buffer was emptied for the last time
+			if (buffer.remove(pending))
+				pending.result.completeExceptionally(closedException());
+		}
+		return pending.result;
+	}
+	
+	/**
+	 * Sends every key sequence posted so far, and waits until the server has
+	 * answered for all of them. Failures are reported through the futures
+	 * returned when the key sequences were posted.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public void flush() throws InterruptedException
+	{
+		try
+		{
+			sender.submit(this::send).get();
+		}
+		catch (ExecutionException e)
+		{
+			// send reports its failures through the futures
+		}
+		catch (RejectedExecutionException e)
+		{
+			// closed, so everything has been sent already
+		}
+	}
+	
+	/**
+	 * Sends every key sequence posted so far, waits for the server to answer,
+	 * and stops the client. Key sequences may no longer be posted.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		try
+		{
+			flush();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		sender.shutdown();
+		Pending pending;
+		while ((pending = buffer.poll()) != null)
+			pending.result.completeExceptionally(closedException());
+	}
+	
+	private static IllegalStateException closedException()
+	{
+		return new IllegalStateException("The batching client is closed");
+	}
+	
+	/**
+	 * Sends batches until the buffer is empty. Runs on the sending thread only,
+	 * so that batches leave in order.
+	 */
+	private void send()
+	{
+		while (true)
+		{
+			var batch = new ArrayList<Pending>();
+			Pending pending;
+			while (batch.size() < maxBatch && (pending = buffer.poll()) != null)
+				batch.add(pending);
+			if (batch.isEmpty())
+				return;
+			buffered.addAndGet(-batch.size());
+			var sequences = new ArrayList<Map.Entry<String, String>>(batch.size());
+			for (Pending p : batch)
+				sequences.add(p.sequence);
+			try
+			{
+				Client.postSequences(sequences, policy);
+				for (Pending p : batch)
+					p.result.complete(null);
+			}
+			catch (Exception e)
+			{
+				for (Pending p : batch)
+					p.result.completeExceptionally(e);
+			}
+		}
+	}
+	
+	/**
+	 * A key sequence waiting to be sent, along with the future of its caller
+	 */
+	private static final class Pending
+	{
+		final Map.Entry<String, String> sequence;
+		final CompletableFuture<Void> result = new CompletableFuture<>();
+		
+		Pending(Map.Entry<String, String> sequence)
+		{
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package window;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * A response whose body is a file, such as {@code 404.html}, kept in memory
+ * with its headers already assembled so that serving it touches neither the
+ * disk nor the formatter. The file is looked at again at most once a second,
+ * and reloaded if it has changed. A missing file is served as its status line
+ * in plain text. Intentionally package protected.
+ * 
+ * @author ratha
+ */
+final class CachedResponse
+{
+	private static final long CHECK_INTERVAL = 1000;
+	private final File file;
+	private final String code;
+	private volatile Snapshot snapshot;
+	
+	/**
+	 * @param file
+	 *            The file holding the body of the response
+	 * @param code
+	 *            The status of the response, such as {@code 404 File Not Found}
+	 */
+	CachedResponse(File file, String code)
+	{
+		this.file = file;
+		this.code = code;
+	}
+	
+	/**
+	 * Writes the response and flushes it, so that it leaves in one write
+	 * 
+	 * @param keepAlive
+	 *            Whether the connection stays open after the response
+	 * @param served
+	 *            How many requests have been served on the connection
+	 */
+	void write(OutputStream dataOut, boolean keepAlive, int served) throws IOException
+	{
+		Snapshot current = current();
+		Server.metrics.response(code);
+		dataOut.write(current.head);
+		Server.connectionHeaders(dataOut, keepAlive, served);
+		dataOut.write(current.body);
+		dataOut.flush();
+	}
+	
+	/**
+	 * @return The cached response, reloaded first if the file has changed
+	 */
+	private Snapshot current() throws IOException
+	{
+		Snapshot current = snapshot;
+		long now = System.currentTimeMillis();
+		if(current != null && now - current.checked < CHECK_INTERVAL)
+			return current;
+		long modified = file.lastModified();
+		if(current != null && current.modified == modified)
+			current.checked = now;
+		else
+			snapshot = current = load(modified, now);
+		return current;
+	}
+	
+	private Snapshot load(long modified, long now) throws IOException
+	{
+		byte[] body;
+		String contentType;
+		try
+		{
+			body = Files.readAllBytes(file.toPath());
+			contentType = getContentType(file.getPath());
+		}
+		catch(NoSuchFileException e)
+		{
+			body = (code + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			contentType = "text/plain";
+		}
+		byte[] head = Server.statusHeaders(code, contentType, body.length)
+			.getBytes(StandardCharsets.ISO_8859_1);
+		return new Snapshot(modified, now, head, body);
+	}
+	
+	private static String getContentType(String fileRequested)
+	{
+		if(fileRequested.endsWith(".htm") || fileRequested.endsWith(".html"))
+			return "text/html";
+		else
+			return "text/plain";
+	}
+	
+	/**
+	 * The response as assembled from one version of the file
+	 */
+	private static final class Snapshot
+	{
+		/**
+		 * When the file was last modified, or 0 if it did not exist
+		 */
+		final long modified;
+		final byte[] head;
+		final byte[] body;
+		/**
+		 * When the file was last seen unchanged
+		 */
+		volatile long checked;
+		
+		Snapshot(long modified, long checked, byte[] head, byte[] body)
+		{
+			this.modified = modified;
+			this.checked = checked;
+			this.head = head;
+			this.body = body;
+		}
+	}
+}
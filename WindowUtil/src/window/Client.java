@@ -1,42 +1,453 @@
 package window;
 
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * A class defining a client that sends key sequences to a server that
- * communicates with an AutoHotKey process, which executes those key sequences
+ * communicates with an AutoHotKey process, which executes those key sequences.
+ * If the server runs in the same JVM, key sequences are posted, polled, leased
+ * and acknowledged without going through HTTP, unless
+ * {@link Client#setInProcess(boolean) turned off}. Queue depths are always
+ * asked for over HTTP, as is everything an {@link AsyncClient} sends.
  */
 public class Client
 {
+	private static volatile OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+	private static volatile boolean inProcess = true;
+	
+	/**
+	 * Sets what to do when the server's queue is full, for posts that do not
+	 * name a policy of their own. The default is {@link OverloadPolicy#BLOCK}.
+	 * 
+	 * @param policy
+	 *            The policy
+	 */
+	public static void setOverloadPolicy(OverloadPolicy policy)
+	{
+		overloadPolicy = Objects.requireNonNull(policy);
+	}
+	
+	/**
+	 * @return What to do when the server's queue is full, for posts that do not
+	 *         name a policy of their own
+	 */
+	public static OverloadPolicy getOverloadPolicy()
+	{
+		return overloadPolicy;
+	}
+	
+	/**
+	 * Sets whether key sequences are handed directly to a server launched in
+	 * this JVM, which is the default, rather than sent to it over HTTP. Either
+	 * way, the server queues and counts them the same.
+	 * 
+	 * @param direct
+	 *            Whether to bypass HTTP when the server runs in this JVM
+	 */
+	public static void setInProcess(boolean direct)
+	{
+		inProcess = direct;
+	}
+	
+	/**
+	 * @return Whether key sequences are handed directly to a server launched in
+	 *         this JVM
+	 */
+	public static boolean isInProcess()
+	{
+		return inProcess;
+	}
+	
+	/**
+	 * @return Whether to hand key sequences directly to the server
+	 */
+	private static boolean local()
+	{
+		return inProcess && Server.local();
+	}
+	
 	public static void postSequence(String title, String actionSequence) throws Exception
 	{
-		URL url = new URL("http://localhost:" + Server.PORT + "/actionSequence");
-		Map<String, Object> params = new LinkedHashMap<>();
-		params.put(title, actionSequence);
-		StringBuilder postData = new StringBuilder();
-		for (Map.Entry<String, Object> param : params.entrySet())
+		postSequence(title, actionSequence, overloadPolicy);
+	}
+	
+	/**
+	 * Sends a key sequence
+	 * 
+	 * @param policy
+	 *            What to do if the server's queue is full
+	 * @throws QueueFullException
+	 *             If the queue is full and the policy gives up
+	 * @throws Exception
+	 *             If the server could not be reached
+	 */
+	public static void postSequence(String title, String actionSequence, OverloadPolicy policy)
+		throws Exception
+	{
+		post("/actionSequence", List.of(Map.entry(title, String.valueOf(actionSequence))), 0, 0, null,
+			policy);
+	}
+	
+	/**
+	 * Sends a key sequence that jumps ahead of key sequences of lower priority,
+	 * and is dropped if it has not been picked up in time
+	 * 
+	 * @param priority
+	 *            Key sequences of higher priority are executed first. Key
+	 *            sequences sent without one have priority 0.
+	 * @param ttl
+	 *            How many milliseconds the key sequence may wait to be picked
+	 *            up, or 0 to wait as long as it takes
+	 * @throws QueueFullException
+	 *             If the queue is full and the overload policy gives up
+	 * @throws Exception
+	 *             If the server could not be reached
+	 * @see Client#setOverloadPolicy(OverloadPolicy)
+	 */
+	public static void postSequence(String title, String actionSequence, int priority, long ttl)
+		throws Exception
+	{
+		post("/actionSequence", List.of(Map.entry(title, String.valueOf(actionSequence))), priority, ttl,
+			null, overloadPolicy);
+	}
+	
+	/**
+	 * Sends a key sequence that replaces the key sequence sent earlier with the
+	 * same key for the same window, if that one has not been picked up yet,
+	 * such as a refresh that supersedes the previous one
+	 * 
+	 * @param key
+	 *            The coalescing key
+	 * @throws QueueFullException
+	 *             If the queue is full, there is nothing to replace, and the
+	 *             overload policy gives up
+	 * @throws Exception
+	 *             If the server could not be reached
+	 * @see Client#setOverloadPolicy(OverloadPolicy)
+	 */
+	public static void coalesceSequence(String title, String key, String actionSequence)
+		throws Exception
+	{
+		post("/actionSequence", List.of(Map.entry(title, String.valueOf(actionSequence))), 0, 0,
+			Objects.requireNonNull(key), overloadPolicy);
+	}
+	
+	/**
+	 * Sends many key sequences in a single request. The server accepts either
+	 * all of them or none of them.
+	 * 
+	 * @param sequences
+	 *            The key sequences to send, as (title, sequence) pairs in the
+	 *            order in which they should be executed. Titles may repeat.
+	 * @throws QueueFullException
+	 *             If the server's queue has no room for the whole batch, and
+	 *             the overload policy gives up
+	 * @throws Exception
+	 *             If the server could not be reached, or rejected the batch
+	 * @see Client#setOverloadPolicy(OverloadPolicy)
+	 */
+	public static void postSequences(List<? extends Map.Entry<String, String>> sequences)
+		throws Exception
+	{
+		postSequences(sequences, overloadPolicy);
+	}
+	
+	/**
+	 * Sends many key sequences in a single request
+	 * 
+	 * @param policy
+	 *            What to do if the server's queue has no room for the whole
+	 *            batch
+	 * @see Client#postSequences(List)
+	 */
+	public static void postSequences(List<? extends Map.Entry<String, String>> sequences,
+		OverloadPolicy policy) throws Exception
+	{
+		post("/actionSequence/batch", sequences, 0, 0, null, policy);
+	}
+	
+	/**
+	 * Takes up to {@code max} key sequences off the server in a single request,
+	 * as a consumer such as KeySender would
+	 * 
+	 * @param max
+	 *            The most key sequences to take
+	 * @param wait
+	 *            How many milliseconds the server may wait for a key sequence
+	 *            if none is queued, or 0 to return immediately
+	 * @return The key sequences taken, as (title, sequence) pairs in the order
+	 *         the windows take turns, which is empty if none arrived in time
+	 * @throws Exception
+	 *             If the server could not be reached
+	 */
+	public static List<Map.Entry<String, String>> pollSequences(int max, long wait)
+		throws Exception
+	{
+		if (local())
 		{
-			if (postData.length() != 0)
-				postData.append('&');
-			postData.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8));
-			postData.append('=');
-			postData.append(URLEncoder.encode(String.valueOf(param.getValue()),
-				StandardCharsets.UTF_8));
+			var sequences = new ArrayList<Map.Entry<String, String>>();
+			for (Action action : Server.poll(max, wait))
+				sequences.add(Map.entry(action.title, action.sequence));
+			return sequences;
 		}
-		byte[] postDataBytes = postData.toString().getBytes(StandardCharsets.UTF_8);
-		
+		return decode(get("/actionSequence/batch?max=" + max + "&wait=" + wait, wait));
+	}
+	
+	/**
+	 * Leases the next key sequence off the server, so that several consumers
+	 * may share the queue. The key sequence is handed out again if the lease is
+	 * not {@link Client#acknowledge(Lease) acknowledged} within
+	 * {@code visibility} milliseconds, and no other key sequence for the same
+	 * window is handed out until then.
+	 * 
+	 * @param visibility
+	 *            How many milliseconds the lease lasts unless acknowledged
+	 * @param wait
+	 *            How many milliseconds the server may wait for a key sequence
+	 *            if none is queued, or 0 to return immediately
+	 * @return The lease, or {@code null} if no key sequence arrived in time
+	 * @throws Exception
+	 *             If the server could not be reached
+	 */
+	public static Lease leaseSequence(long visibility, long wait) throws Exception
+	{
+		if (local())
+		{
+			ActionQueue.Lease lease = Server.lease(visibility, wait);
+			if (lease == null)
+				return null;
+			return new Lease(lease.id, lease.sequence.title, lease.sequence.sequence);
+		}
+		var params = decode(get("/actionSequence/lease?visibility=" + visibility + "&wait=" + wait, wait));
+		if (params.size() != 2)
+			return null;
+		return new Lease(Long.parseLong(params.get(0).getValue()), params.get(1).getKey(),
+			params.get(1).getValue());
+	}
+	
+	/**
+	 * Tells the server that a leased key sequence has been executed
+	 * 
+	 * @return Whether the lease was still held. If it had run out, the key
+	 *         sequence has been or will be handed out again.
+	 * @throws Exception
+	 *             If the server could not be reached
+	 */
+	public static boolean acknowledge(Lease lease) throws Exception
+	{
+		if (local())
+			return Server.acknowledge(lease.id);
+		URL url = new URL("http://localhost:" + Server.PORT + "/actionSequence/ack");
+		byte[] postDataBytes = ("lease=" + lease.id).getBytes(StandardCharsets.UTF_8);
 		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
 		conn.setRequestMethod("POST");
 		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-		conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
 		conn.setDoOutput(true);
 		conn.getOutputStream().write(postDataBytes);
 		conn.getOutputStream().flush();
-		conn.getInputStream().close();
+		boolean held = conn.getResponseCode() == HttpURLConnection.HTTP_OK;
+		try (InputStream in = held ? conn.getInputStream() : conn.getErrorStream())
+		{
+			in.readAllBytes();
+		}
+		return held;
+	}
+	
+	/**
+	 * Asks the server how many key sequences are queued for each window
+	 * 
+	 * @return The number of queued key sequences keyed by window title, in the
+	 *         order the windows will take turns. Windows with nothing queued
+	 *         are left out.
+	 * @throws Exception
+	 *             If the server could not be reached
+	 */
+	public static Map<String, Integer> queueDepths() throws Exception
+	{
+		var depths = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, String> depth : decode(get("/actionSequence/depth", 0)))
+			depths.put(depth.getKey(), Integer.valueOf(depth.getValue()));
+		return depths;
+	}
+	
+	/**
+	 * Gets the body of the response to a request for the given path
+	 * 
+	 * @param wait
+	 *            How many milliseconds the server may hold the request before
+	 *            answering
+	 */
+	private static String get(String path, long wait) throws Exception
+	{
+		URL url = new URL("http://localhost:" + Server.PORT + path);
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setReadTimeout((int)Math.min(Integer.MAX_VALUE, wait + 30_000));
+		try (InputStream in = conn.getInputStream())
+		{
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+	
+	/**
+	 * Decodes a form-encoded body into its (name, value) pairs, in order
+	 */
+	static List<Map.Entry<String, String>> decode(String body)
+	{
+		var params = new ArrayList<Map.Entry<String, String>>();
+		if (body.isEmpty())
+			return params;
+		for (String entry : body.split("&"))
+		{
+			String[] info = entry.split("=", 2);
+			params.add(Map.entry(URLDecoder.decode(info[0], StandardCharsets.UTF_8),
+				URLDecoder.decode(info[1], StandardCharsets.UTF_8)));
+		}
+		return params;
+	}
+	
+	/**
+	 * Encodes (name, value) pairs as a form-encoded body
+	 */
+	static String encode(List<? extends Map.Entry<String, String>> params)
+	{
+		StringBuilder postData = new StringBuilder();
+		for (Map.Entry<String, String> param : params)
+		{
+			if (postData.length() != 0)
+				postData.append('&');
+			postData.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8));
+			postData.append('=');
+			postData.append(URLEncoder.encode(param.getValue(), StandardCharsets.UTF_8));
+		}
+		return postData.toString();
+	}
+	
+	/**
+	 * Posts the given parameters to the server, form-encoded, trying again as
+	 * the policy directs while the server's queue is full. If the server runs
+	 * in this JVM, the key sequences are handed to it directly instead.
+	 * 
+	 * @param priority
+	 *            The priority of the key sequences, 0 by default
+	 * @param ttl
+	 *            How many milliseconds the key sequences may wait to be picked
+	 *            up, or 0 to wait as long as it takes
+	 * @param key
+	 *            The coalescing key of the key sequence, or {@code null}
+	 */
+	private static void post(String path, List<? extends Map.Entry<String, String>> params, int priority,
+		long ttl, String key, OverloadPolicy policy) throws Exception
+	{
+		if (local())
+		{
+			postLocally(params, priority, ttl, key, policy);
+			return;
+		}
+		var query = new StringBuilder();
+		if (priority != 0)
+			query.append("&priority=").append(priority);
+		if (ttl > 0)
+			query.append("&ttl=").append(ttl);
+		if (key != null)
+			query.append("&coalesce=").append(URLEncoder.encode(key, StandardCharsets.UTF_8));
+		if (query.length() != 0)
+			query.setCharAt(0, '?');
+		URL url = new URL("http://localhost:" + Server.PORT + path + query);
+		byte[] postDataBytes = encode(params).getBytes(StandardCharsets.UTF_8);
+		
+		for (int attempt = 0;; ++attempt)
+		{
+			HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
+			conn.setDoOutput(true);
+			conn.getOutputStream().write(postDataBytes);
+			conn.getOutputStream().flush();
+			if (conn.getResponseCode() != HttpURLConnection.HTTP_UNAVAILABLE)
+			{
+				conn.getInputStream().close();
+				return;
+			}
+			long retryAfter = 1000 * conn.getHeaderFieldLong("Retry-After", 1);
+			conn.getErrorStream().close();
+			long backoff = policy.backoff(attempt, retryAfter);
+			if (backoff < 0)
+				throw new QueueFullException(retryAfter);
+			Thread.sleep(backoff);
+		}
+	}
+	
+	/**
+	 * Hands key sequences to the server running in this JVM, as
+	 * {@link #post(String, List, int, long, String, OverloadPolicy)} would send
+	 * them, without encoding them or going through a socket
+	 */
+	private static void postLocally(List<? extends Map.Entry<String, String>> params, int priority,
+		long ttl, String key, OverloadPolicy policy) throws Exception
+	{
+		for (int attempt = 0;; ++attempt)
+		{
+			// made afresh for each attempt, as the server would on receiving it
+			long deadline = Server.deadline(0, ttl > 0 ? ttl : -1);
+			var batch = new ArrayList<Action>(params.size());
+			for (Map.Entry<String, String> param : params)
+				batch.add(Server.action(param.getKey(), param.getValue(), priority, deadline, key));
+			if (Server.post(batch))
+				return;
+			long retryAfter = 1000L * Server.RETRY_AFTER;
+			long backoff = policy.backoff(attempt, retryAfter);
+			if (backoff < 0)
+				throw new QueueFullException(retryAfter);
+			Thread.sleep(backoff);
+		}
+	}
+	
+	/**
+	 * A key sequence leased from the server
+	 * 
+	 * @see Client#leaseSequence(long, long)
+	 */
+	public static final class Lease
+	{
+		private final long id;
+		private final String title;
+		private final String sequence;
+		
+		Lease(long id, String title, String sequence)
+		{
+			this.id = id;
+			this.title = title;
+			this.sequence = sequence;
+		}
+		
+		/**
+		 * @return The title of the window the key sequence is meant for
+		 */
+		public String getTitle()
+		{
+			return title;
+		}
+		
+		public String getSequence()
+		{
+			return sequence;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return title + "=" + sequence;
+		}
 	}
 }
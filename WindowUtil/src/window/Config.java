@@ -0,0 +1,85 @@
+package window;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.function.Function;
+
+/**
+ * Holds the settings read from {@code winUtil.config}. Kept apart from
+ * {@link WinUtil} so that the key server can be configured without loading
+ * the native Windows libraries. Intentionally package protected.
+ * 
+ * @author ratha
+ */
+final class Config
+{
+	static final Properties properties = new Properties();
+	
+	static
+	{
+		try (var fis = new FileInputStream("winUtil.config"))
+		{
+			properties.load(fis);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.err.println(
+				"Library WinUtil Failed to load resources: Check that config settings are correct");
+		}
+	}
+	
+	/*
+	 * Cannot be instantiated
+	 */
+	private Config()
+	{
+	}
+	
+	/**
+	 * @return A function which cleans comments from configuration file properties
+	 */
+	static Function<String, String> cleanComments()
+	{
+		return (property) -> property.replaceAll("//.*", "").trim();
+	}
+	
+	/**
+	 * Reads a property of type R from {@code property} using conversion function
+	 * {@code converter}
+	 */
+	static <R> R readProperty(Function<String, R> converter, Object property)
+	{
+		return converter.apply(((String)property));
+	}
+	
+	/**
+	 * Reads the setting {@code key} using conversion function {@code converter},
+	 * falling back to {@code defaultValue} if the setting is absent or malformed
+	 */
+	static <R> R read(String key, Function<String, R> converter, R defaultValue)
+	{
+		Object property = properties.get(key);
+		if (property == null)
+			return defaultValue;
+		try
+		{
+			return readProperty(cleanComments().andThen(converter), property);
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println("Ignoring malformed config setting " + key + "=" + property);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Reads the integer setting {@code key}, or {@code defaultValue} if it is
+	 * absent or malformed
+	 */
+	static int readInt(String key, int defaultValue)
+	{
+		return read(key, Integer::parseInt, defaultValue);
+	}
+}
@@ -0,0 +1,227 @@
+package window;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the key {@link Server} does, and reports it in the Prometheus
+ * text format. Every update is a single uncontended add, so the counters may
+ * be bumped on every request without the threads serving connections waiting
+ * on one another. Intentionally package protected.
+ * 
+ * @author ratha
+ */
+final class Metrics
+{
+	/**
+	 * The time action sequences spend queued is counted in buckets whose upper
+	 * bounds double from 1 microsecond, the last finite one being about 134
+	 * seconds
+	 */
+	private static final int BUCKETS = 28;
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final ConcurrentHashMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder[] queued = new LongAdder[BUCKETS + 1];
+	private final LongAdder queuedNanos = new LongAdder();
+	private final LongAccumulator queuedMax = new LongAccumulator(Math::max, 0);
+	
+	Metrics()
+	{
+		for(int i = 0; i < queued.length; ++i)
+			queued[i] = new LongAdder();
+	}
+	
+	void connection()
+	{
+		connections.increment();
+	}
+	
+	void request()
+	{
+		requests.increment();
+	}
+	
+	/**
+	 * @param code
+	 *            The status of the response, such as {@code 200 OK}
+	 */
+	void response(String code)
+	{
+		int status = 0;
+		for(int i = 0; i < Math.min(3, code.length()); ++i)
+			status = status * 10 + Character.digit(code.charAt(i), 10);
+		responses.computeIfAbsent(status, (s) -> new LongAdder()).increment();
+	}
+	
+	/**
+	 * @param count
+	 *            How many action sequences were queued
+	 */
+	void accepted(int count)
+	{
+		accepted.add(count);
+	}
+	
+	/**
+	 * @param count
+	 *            How many action sequences were refused because the queue was
+	 *            full
+	 */
+	void rejected(int count)
+	{
+		rejected.add(count);
+	}
+	
+	/**
+	 * Notes how long an action sequence spent queued, now that it has been
+	 * handed out
+	 */
+	void delivered(Action action)
+	{
+		long nanos = Math.max(0, System.nanoTime() - action.enqueued);
+		queued[bucket(nanos)].increment();
+		queuedNanos.add(nanos);
+		queuedMax.accumulate(nanos);
+	}
+	
+	/**
+	 * @return The index of the smallest bucket holding the given time
+	 */
+	private static int bucket(long nanos)
+	{
+		long micros = ( nanos + 999 ) / 1000;
+		if(micros <= 1)
+			return 0;
+		return Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros - 1));
+	}
+	
+	/**
+	 * @return The upper bound of the bucket at the given index, in seconds
+	 */
+	private static double bound(int bucket)
+	{
+		return ( 1L << bucket ) / 1e6;
+	}
+	
+	long connections()
+	{
+		return connections.sum();
+	}
+	
+	long requests()
+	{
+		return requests.sum();
+	}
+	
+	/**
+	 * Reports every metric in the Prometheus text exposition format
+	 * 
+	 * @param queue
+	 *            The queue of action sequences, whose depths and drops are
+	 *            reported along with the server's counters
+	 */
+	String scrape(ActionQueue queue)
+	{
+		Map<String, Integer> depths = queue.depths();
+		var out = new StringBuilder();
+		counter(out, "key_server_connections_total", "Connections accepted.", connections.sum());
+		counter(out, "key_server_requests_total", "Requests received over all connections.",
+			requests.sum());
+		header(out, "key_server_responses_total", "Responses sent, by status code.", "counter");
+		for(Map.Entry<Integer, LongAdder> status : new TreeMap<>(responses).entrySet())
+			out.append("key_server_responses_total{code=\"").append(status.getKey()).append("\"} ")
+				.append(status.getValue().sum()).append('\n');
+		counter(out, "key_server_actions_accepted_total", "Action sequences queued.", accepted.sum());
+		counter(out, "key_server_actions_rejected_total",
+			"Action sequences refused because the queue was full.", rejected.sum());
+		counter(out, "key_server_actions_expired_total",
+			"Action sequences dropped instead of handed out because their deadline had passed.",
+			queue.expired());
+		counter(out, "key_server_actions_coalesced_total",
+			"Action sequences replaced before being handed out by one with the same coalescing key.",
+			queue.coalesced());
+		
+		int depth = 0;
+		for(int d : depths.values())
+			depth += d;
+		header(out, "key_server_queue_depth", "Action sequences waiting to be picked up.", "gauge");
+		out.append("key_server_queue_depth ").append(depth).append('\n');
+		header(out, "key_server_window_queue_depth",
+			"Action sequences waiting to be picked up, by window title.", "gauge");
+		for(Map.Entry<String, Integer> window : depths.entrySet())
+			out.append("key_server_window_queue_depth{window=\"").append(escape(window.getKey()))
+				.append("\"} ").append(window.getValue()).append('\n');
+		
+		var counts = new long[queued.length];
+		long count = 0;
+		for(int i = 0; i < queued.length; ++i)
+			count += counts[i] = queued[i].sum();
+		header(out, "key_server_action_queued_seconds",
+			"Time action sequences spent queued before being handed out.", "histogram");
+		long cumulative = 0;
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			cumulative += counts[i];
+			out.append("key_server_action_queued_seconds_bucket{le=\"").append(bound(i)).append("\"} ")
+				.append(cumulative).append('\n');
+		}
+		out.append("key_server_action_queued_seconds_bucket{le=\"+Inf\"} ").append(count).append('\n');
+		out.append("key_server_action_queued_seconds_sum ").append(queuedNanos.sum() / 1e9).append('\n');
+		out.append("key_server_action_queued_seconds_count ").append(count).append('\n');
+		
+		header(out, "key_server_action_queued_seconds_quantile",
+			"Estimated quantiles of the time action sequences spent queued, as bucket upper bounds.",
+			"gauge");
+		double max = queuedMax.get() / 1e9;
+		for(double q : QUANTILES)
+			out.append("key_server_action_queued_seconds_quantile{quantile=\"").append(q).append("\"} ")
+				.append(quantile(counts, count, q, max)).append('\n');
+		return out.toString();
+	}
+	
+	/**
+	 * @return The upper bound of the bucket holding the given quantile, which
+	 *         is never more than the longest time observed
+	 */
+	private static double quantile(long[] counts, long count, double q, double max)
+	{
+		if(count == 0)
+			return 0;
+		long rank = (long)Math.ceil(q * count);
+		long cumulative = 0;
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			cumulative += counts[i];
+			if(cumulative >= rank)
+				return Math.min(bound(i), max);
+		}
+		return max;
+	}
+	
+	private static void counter(StringBuilder out, String name, String help, long value)
+	{
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+	
+	private static void header(StringBuilder out, String name, String help, String type)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	/**
+	 * Escapes a label value as the exposition format requires
+	 */
+	private static String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
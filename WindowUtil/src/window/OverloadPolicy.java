@@ -0,0 +1,61 @@
+package window;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * What a {@link Client} does when the key {@link Server} refuses action
+ * sequences because its queue is full
+ * 
+ * @author ratha
+ */
+public enum OverloadPolicy
+{
+	/**
+	 * Waits as long as the server asks, then tries again, for as long as it
+	 * takes the queue to make room
+	 */
+	BLOCK,
+	/**
+	 * Gives up at once, throwing a {@link QueueFullException}
+	 */
+	FAIL_FAST,
+	/**
+	 * Tries again after an exponentially growing, randomized delay, and gives up
+	 * with a {@link QueueFullException} after {@value #RETRIES} retries
+	 */
+	RETRY;
+	
+	/**
+	 * How many times {@link #RETRY} tries again before giving up
+	 */
+	public static final int RETRIES = 5;
+	private static final long BASE_BACKOFF = 100;
+	private static final long MAX_BACKOFF = 5000;
+	
+	/**
+	 * Determines how long to wait before trying again
+	 * 
+	 * @param attempt
+	 *            How many times the sequences have been refused so far, less 1
+	 * @param retryAfter
+	 *            How many milliseconds the server asked to wait
+	 * @return How many milliseconds to wait before trying again, or -1 to give
+	 *         up
+	 */
+	long backoff(int attempt, long retryAfter)
+	{
+		switch (this)
+		{
+		case BLOCK:
+			return Math.max(BASE_BACKOFF, retryAfter);
+		case RETRY:
+			if(attempt >= RETRIES)
+				return -1;
+			long ceiling = Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt);
+			// full jitter, so that producers refused together do not return together
+			return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+		default:
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package window;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Limits how quickly action sequences are handed out for each window, so that
+ * a slow application is not sent keys faster than it can take them.
+ * Intentionally package protected.
+ * <p>
+ * Each window has a token bucket, refilled at the window's rate and holding
+ * at most its burst. A bucket is kept as the single time at which it would be
+ * empty were every token spent, and is updated by compare and swap, so that
+ * looking up and spending tokens never blocks. Windows without a rate are not
+ * paced at all.
+ * <p>
+ * The {@link ActionQueue} looks up a window's bucket, which reads the window's
+ * rate and burst, before taking its lock, and keeps it with the window's
+ * partition. Under its lock, it only reads a bucket while picking the partition
+ * whose turn it is and spends from it as it hands out that partition's
+ * sequence, so that two consumers cannot both take a window's last token.
+ * 
+ * @author ratha
+ */
+final class Pacer
+{
+	/**
+	 * The bucket of every window that is not paced
+	 */
+	private static final Bucket UNLIMITED = new Bucket(0, 0);
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+	private final ToDoubleFunction<String> rates;
+	private final ToIntFunction<String> bursts;
+	
+	/**
+	 * @param rates
+	 *            Gives how many sequences per second may be handed out for each
+	 *            window title, or 0 for no limit
+	 * @param bursts
+	 *            Gives how many sequences may be handed out at once for each
+	 *            window title, after it has been idle
+	 */
+	Pacer(ToDoubleFunction<String> rates, ToIntFunction<String> bursts)
+	{
+		this.rates = rates;
+		this.bursts = bursts;
+	}
+	
+	/**
+	 * @return The token bucket of the given window, created the first time the
+	 *         window is paced
+	 */
+	Bucket bucket(String title)
+	{
+		Bucket bucket = buckets.get(title);
+		if(bucket != null)
+			return bucket;
+		return buckets.computeIfAbsent(title, (t) ->
+		{
+			double rate = rates.applyAsDouble(t);
+			if(!( rate > 0 ))
+				return UNLIMITED;
+			long interval = Math.max(1, (long)( TimeUnit.SECONDS.toNanos(1) / rate ));
+			return new Bucket(interval, ( Math.max(1, bursts.applyAsInt(t)) - 1 ) * interval);
+		});
+	}
+	
+	/**
+	 * The token bucket of one window
+	 */
+	static final class Bucket
+	{
+		/**
+		 * How many nanoseconds it takes to earn a token
+		 */
+		final long interval;
+		/**
+		 * How far ahead of now the bucket may be spent, which is the time it
+		 * takes to earn all but one token of a full bucket
+		 */
+		final long tolerance;
+		/**
+		 * When the bucket would be empty, as given by {@link System#nanoTime()}
+		 */
+		final AtomicLong empty = new AtomicLong(Long.MIN_VALUE / 2);
+		
+		Bucket(long interval, long tolerance)
+		{
+			this.interval = interval;
+			this.tolerance = tolerance;
+		}
+		
+		/**
+		 * @param now
+		 *            The current time, as given by {@link System#nanoTime()}
+		 * @return How many nanoseconds until a sequence may be handed out for
+		 *         the window, which is 0 if one may be now
+		 */
+		long delay(long now)
+		{
+			if(this == UNLIMITED)
+				return 0;
+			return Math.max(0, empty.get() - tolerance - now);
+		}
+		
+		/**
+		 * Spends a token, whether or not one is left
+		 * 
+		 * @param now
+		 *            The current time, as given by {@link System#nanoTime()}
+		 */
+		void spend(long now)
+		{
+			if(this == UNLIMITED)
+				return;
+			long empty;
+			do
+				empty = this.empty.get();
+			while(!this.empty.compareAndSet(empty, Math.max(empty, now) + interval));
+		}
+	}
+}
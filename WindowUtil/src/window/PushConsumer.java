@@ -0,0 +1,153 @@
+package window;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A consumer of the action sequences the key {@link Server} streams on
+ * {@code push-port}, in pure Java. It stands in for KeySender when testing
+ * locally, and shows how a consumer speaks the streaming protocol: the server
+ * sends a sequence as soon as it is queued, so long as the consumer has
+ * credit, and the consumer acknowledges each sequence once it has executed it.
+ * Sequences left unacknowledged when the consumer disconnects are queued
+ * again for the next consumer.
+ * 
+ * @author ratha
+ */
+public class PushConsumer implements Closeable
+{
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	
+	/**
+	 * Connects to the server on localhost
+	 * 
+	 * @param port
+	 *            The port on which the server streams sequences, as given by
+	 *            {@link Server#pushPort()}
+	 * @param window
+	 *            How many sequences the server may send before the first of them
+	 *            is acknowledged
+	 * @throws IOException
+	 *             If the server could not be reached
+	 */
+	public PushConsumer(int port, int window) throws IOException
+	{
+		socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		credit(window);
+	}
+	
+	/**
+	 * Waits for the server to send the next action sequence
+	 * 
+	 * @return The sequence, which should be acknowledged once it is executed
+	 * @throws IOException
+	 *             If the connection was lost
+	 */
+	public Delivery receive() throws IOException
+	{
+		while(true)
+		{
+			int length = in.readInt();
+			byte type = in.readByte();
+			if(type != PushServer.ACTION)
+			{
+				in.skipNBytes(length - 1);
+				continue;
+			}
+			long id = in.readLong();
+			var title = new byte[in.readInt()];
+			in.readFully(title);
+			var sequence = new byte[length - 1 - 8 - 4 - title.length];
+			in.readFully(sequence);
+			return new Delivery(id, new String(title, StandardCharsets.UTF_8),
+				new String(sequence, StandardCharsets.UTF_8));
+		}
+	}
+	
+	/**
+	 * Acknowledges that a sequence has been executed, letting the server send
+	 * one more in its place
+	 * 
+	 * @param delivery
+	 *            The sequence executed
+	 * @throws IOException
+	 *             If the connection was lost
+	 */
+	public void ack(Delivery delivery) throws IOException
+	{
+		out.writeInt(9);
+		out.writeByte(PushServer.ACK);
+		out.writeLong(delivery.id);
+		credit(1);
+	}
+	
+	/**
+	 * Lets the server send {@code count} more sequences
+	 */
+	private void credit(int count) throws IOException
+	{
+		out.writeInt(5);
+		out.writeByte(PushServer.CREDIT);
+		out.writeInt(count);
+		out.flush();
+	}
+	
+	/**
+	 * Disconnects, so that any sequences not acknowledged are queued again
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+	
+	/**
+	 * An action sequence sent by the server
+	 */
+	public static class Delivery
+	{
+		private final long id;
+		private final String title;
+		private final String sequence;
+		
+		Delivery(long id, String title, String sequence)
+		{
+			this.id = id;
+			this.title = title;
+			this.sequence = sequence;
+		}
+		
+		/**
+		 * @return The title of the window the sequence is meant for
+		 */
+		public String getTitle()
+		{
+			return title;
+		}
+		
+		/**
+		 * @return The key sequence to send
+		 */
+		public String getSequence()
+		{
+			return sequence;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return title + "=" + sequence;
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package window;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams action sequences to consumers over persistent connections on
+ * {@code push-port}, as an alternative to polling {@code /actionsequence}.
+ * Sequences are sent as soon as they are queued, for as long as the consumer
+ * has credit. Intentionally package protected.
+ * <p>
+ * Every frame, in either direction, is an {@code int} length, followed by that
+ * many bytes: a type byte and the frame's fields, big-endian.
+ * 
+ * <pre>
+ * consumer to server
+ *   CREDIT  int count     lets the server send count more sequences
+ *   ACK     long id       the sequence sent with this id has been executed
+ * server to consumer
+ *   ACTION  long id, int titleLength, byte[] title, byte[] sequence   UTF-8
+ * </pre>
+ * 
+ * Sequences sent but not acknowledged when a connection ends are queued again,
+ * ahead of anything queued since. Sequences are only checkpointed in the
+ * action log once acknowledged, so that those in flight when the JVM stops
+ * are replayed on restart.
+ * 
+ * @see PushConsumer
+ * @author ratha
+ */
+final class PushServer
+{
+	static final byte CREDIT = 1;
+	static final byte ACK = 2;
+	static final byte ACTION = 3;
+	/**
+	 * The most bytes of a frame consumers may send, which is more than enough
+	 * for any of their frames
+	 */
+	static final int MAX_CONSUMER_FRAME = 64;
+	/**
+	 * How long a connection waits for a sequence before looking again whether
+	 * it is still open, in milliseconds
+	 */
+	private static final long POLL_INTERVAL = 1000;
+	private static final AtomicInteger threads = new AtomicInteger();
+	private static volatile ServerSocket socket;
+	
+	/*
+	 * Cannot be instantiated
+	 */
+	private PushServer()
+	{
+	}
+	
+	/**
+	 * Starts accepting consumers on the given port of localhost, in place of
+	 * the port they were accepted on so far
+	 * 
+	 * @return Whether the port could be bound
+	 */
+	static synchronized boolean serve(int port)
+	{
+		shutdown();
+		try
+		{
+			@SuppressWarnings( "resource" ) // closed on shutdown or when the VM shuts down
+			var s = new ServerSocket();
+			s.setReuseAddress(true);
+			s.bind(new InetSocketAddress(InetAddress.getByName("localhost"), port));
+			start("key-server-push-acceptor", () ->
+			{
+				try
+				{
+					while(true)
+					{
+						Socket a = s.accept();
+						start("key-server-push-" + threads.incrementAndGet(), () -> run(a));
+					}
+				}
+				catch(IOException e)
+				{
+					System.out.println("Push server dead: " + e.getMessage());
+				}
+			});
+			socket = s;
+			return true;
+		}
+		catch(IOException e)
+		{
+			System.err.println("Failed to launch push server: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * @return The port consumers are accepted on, or 0 if they are not
+	 */
+	static int port()
+	{
+		ServerSocket s = socket;
+		return s == null ? 0 : s.getLocalPort();
+	}
+	
+	static synchronized void shutdown()
+	{
+		if(socket == null)
+			return;
+		try
+		{
+			socket.close();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error closing push server socket : " + e.getMessage());
+		}
+		socket = null;
+	}
+	
+	/**
+	 * Push connections live as long as their consumer, so they are served on
+	 * daemon threads which do not hold the JVM open
+	 */
+	private static void start(String name, Runnable task)
+	{
+		var t = new Thread(task, name);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Sends sequences down the connection as credit allows, while a second
+	 * thread reads the consumer's credits and acknowledgements
+	 */
+	private static void run(Socket connect)
+	{
+		Server.metrics.connection();
+		var connection = new Connection(connect, Thread.currentThread());
+		start(Thread.currentThread().getName() + "-reader", connection::read);
+		try (connect)
+		{
+			connect.setTcpNoDelay(true);
+			var out = new DataOutputStream(new BufferedOutputStream(connect.getOutputStream()));
+			long id = 0;
+			while(connection.open)
+			{
+				if(!connection.credit.tryAcquire())
+				{
+					// out of credit, so send what has been written while waiting for more
+					out.flush();
+					if(!connection.credit.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS))
+						continue;
+				}
+				Action action = Server.actionSequence.poll(0, false);
+				if(action == null)
+				{
+					// nothing more to send right away, so send what has been written
+					out.flush();
+					action = Server.actionSequence.poll(POLL_INTERVAL, false);
+				}
+				if(action == null || !connection.open)
+				{
+					connection.credit.release();
+					if(action != null)
+						Server.actionSequence.restore(List.of(action), false);
+					continue;
+				}
+				connection.sent(++id, action);
+				Server.metrics.delivered(action);
+				byte[] title = action.title.getBytes(StandardCharsets.UTF_8);
+				byte[] sequence = action.sequence.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(1 + 8 + 4 + title.length + sequence.length);
+				out.writeByte(ACTION);
+				out.writeLong(id);
+				out.writeInt(title.length);
+				out.write(title);
+				out.write(sequence);
+			}
+		}
+		catch(IOException e)
+		{
+			if(connection.open)
+				System.err.println("Push connection failed: " + e.getMessage());
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			connection.open = false;
+			connection.restore();
+		}
+	}
+	
+	/**
+	 * The state of one consumer's connection
+	 */
+	private static final class Connection
+	{
+		final Socket socket;
+		/**
+		 * The thread sending sequences down the connection
+		 */
+		final Thread sender;
+		final Semaphore credit = new Semaphore(0);
+		/**
+		 * The sequences sent but not yet acknowledged, by id, in the order
+		 * they were sent
+		 */
+		private final LinkedHashMap<Long, Action> unacknowledged = new LinkedHashMap<>();
+		volatile boolean open = true;
+		
+		Connection(Socket socket, Thread sender)
+		{
+			this.socket = socket;
+			this.sender = sender;
+		}
+		
+		synchronized void sent(long id, Action action)
+		{
+			unacknowledged.put(id, action);
+		}
+		
+		synchronized void acknowledged(long id)
+		{
+			Action action = unacknowledged.remove(id);
+			if(action != null)
+				Server.actionSequence.checkpoint(action);
+		}
+		
+		/**
+		 * Queues again whatever was sent but not acknowledged
+		 */
+		synchronized void restore()
+		{
+			if(unacknowledged.isEmpty())
+				return;
+			try
+			{
+				Server.actionSequence.restore(new ArrayList<>(unacknowledged.values()), false);
+			}
+			catch(IOException e)
+			{
+				System.err.println("Could not log restored action sequences: " + e.getMessage());
+			}
+			unacknowledged.clear();
+		}
+		
+		/**
+		 * Reads credits and acknowledgements until the consumer disconnects
+		 */
+		void read()
+		{
+			try
+			{
+				var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while(true)
+				{
+					int length = in.readInt();
+					if(length < 1 || length > MAX_CONSUMER_FRAME)
+						throw new IOException("Bad frame length " + length);
+					byte type = in.readByte();
+					if(type == CREDIT && length == 5)
+						credit.release(Math.max(0, Math.min(1 << 20, in.readInt())));
+					else if(type == ACK && length == 9)
+						acknowledged(in.readLong());
+					else
+						in.skipNBytes(length - 1);
+				}
+			}
+			catch(EOFException e)
+			{
+				// the consumer hung up
+			}
+			catch(IOException e)
+			{
+				if(open)
+					System.err.println("Push connection failed: " + e.getMessage());
+			}
+			finally
+			{
+				open = false;
+				// stop the sender waiting for a sequence it could no longer send
+				sender.interrupt();
+				restore();
+				try
+				{
+					socket.close();
+				}
+				catch(IOException e)
+				{
+					// already closed by the sending side
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package window;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the key {@link Server} refuses action sequences because its
+ * queue is full, and the {@link OverloadPolicy} in effect gives up
+ * 
+ * @author ratha
+ */
+public class QueueFullException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	private final long retryAfter;
+	
+	/**
+	 * @param retryAfter
+	 *            How many milliseconds the server asked to wait before trying
+	 *            again
+	 */
+	public QueueFullException(long retryAfter)
+	{
+		super("The key server's action sequence queue is full");
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * @return How many milliseconds the server asked to wait before trying
+	 *         again
+	 */
+	public long getRetryAfter()
+	{
+		return retryAfter;
+	}
+}
@@ -0,0 +1,463 @@
+package window;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads HTTP/1.x requests off a connection, one after another, straight from
+ * the bytes received. The request line and headers are parsed in place within
+ * a buffer borrowed from a shared pool for the life of the connection, and are
+ * examined through this parser rather than copied into strings, so that
+ * parsing a request allocates nothing but its body. Only the headers the
+ * server acts upon, {@code Content-Length} and {@code Connection}, are looked
+ * at. Intentionally package protected.
+ * 
+ * @author ratha
+ */
+final class RequestParser
+{
+	/**
+	 * The most bytes the request line and headers of a request may take up
+	 */
+	static final int MAX_HEADER_SIZE = Math.max(256, Config.readInt("max-header-size", 8192));
+	/**
+	 * The most bytes the body of a request may take up
+	 */
+	static final int MAX_BODY_SIZE = Math.max(0, Config.readInt("max-body-size", 1 << 20));
+	private static final ArrayBlockingQueue<ByteBuffer> pool =
+		new ArrayBlockingQueue<>(Math.max(1, Server.MAX_CONNECTIONS));
+	
+	private final InputStream in;
+	private ByteBuffer buffer;
+	/**
+	 * How far into the buffered bytes the end of the headers has been looked
+	 * for
+	 */
+	private int scanned;
+	private int methodEnd;
+	private int pathStart;
+	private int pathEnd;
+	private int queryEnd;
+	private boolean http11;
+	private boolean close;
+	private boolean keepAlive;
+	private long contentLength;
+	/**
+	 * How many bytes of the current request's body have not been read yet
+	 */
+	private long unread;
+	
+	/**
+	 * @param in
+	 *            The stream of the connection to read requests from
+	 */
+	RequestParser(InputStream in)
+	{
+		this.in = in;
+		buffer = pool.poll();
+		if(buffer == null)
+			buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+		buffer.clear().flip();
+	}
+	
+	/**
+	 * Returns the buffer to the pool. The parser may not be used afterwards.
+	 */
+	void release()
+	{
+		if(buffer != null)
+			pool.offer(buffer);
+		buffer = null;
+	}
+	
+	/**
+	 * Reads the request line and headers of the next request, discarding
+	 * whatever was left unread of the previous request's body
+	 * 
+	 * @return Whether there is another request, which there is not if the
+	 *         connection was closed before it began
+	 * @throws Malformed
+	 *             If the request cannot be parsed or is too large
+	 * @throws EOFException
+	 *             If the connection was closed partway through the request
+	 */
+	boolean next() throws IOException
+	{
+		discardBody();
+		// move any pipelined bytes to the front, so the request starts at 0
+		buffer.compact().flip();
+		scanned = 0;
+		int end;
+		while(( end = headEnd() ) < 0)
+		{
+			if(buffer.limit() == buffer.capacity())
+				throw new Malformed("431 Request Header Fields Too Large");
+			if(!fill())
+			{
+				if(buffer.limit() == 0)
+					return false;
+				throw new EOFException("Connection closed partway through a request");
+			}
+		}
+		parse(end);
+		buffer.position(end);
+		return true;
+	}
+	
+	/**
+	 * Reads more bytes into the buffer after those already there
+	 * 
+	 * @return Whether any bytes were read
+	 */
+	private boolean fill() throws IOException
+	{
+		int limit = buffer.limit();
+		int n = in.read(buffer.array(), limit, buffer.capacity() - limit);
+		if(n < 0)
+			return false;
+		buffer.limit(limit + n);
+		return true;
+	}
+	
+	/**
+	 * @return The index just after the blank line ending the headers, or -1 if
+	 *         it has not been received yet
+	 */
+	private int headEnd()
+	{
+		byte[] bytes = buffer.array();
+		int limit = buffer.limit();
+		for(; scanned < limit; ++scanned)
+		{
+			if(bytes[scanned] != '\n')
+				continue;
+			// a lone line feed, as well as CRLF, ends a line
+			if(scanned >= 1 && bytes[scanned - 1] == '\n')
+				return scanned + 1;
+			if(scanned >= 2 && bytes[scanned - 1] == '\r' && bytes[scanned - 2] == '\n')
+				return scanned + 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Parses the request line and headers, which end at {@code end}
+	 */
+	private void parse(int end) throws Malformed
+	{
+		byte[] bytes = buffer.array();
+		int lineEnd = lineEnd(bytes, 0);
+		methodEnd = indexOf(bytes, 0, lineEnd, (byte)' ');
+		if(methodEnd <= 0)
+			throw new Malformed("400 Bad Request");
+		pathStart = methodEnd + 1;
+		int targetEnd = indexOf(bytes, pathStart, lineEnd, (byte)' ');
+		if(targetEnd < 0)
+			targetEnd = trimEnd(bytes, pathStart, lineEnd);
+		if(targetEnd == pathStart)
+			throw new Malformed("400 Bad Request");
+		pathEnd = indexOf(bytes, pathStart, targetEnd, (byte)'?');
+		if(pathEnd < 0)
+			pathEnd = targetEnd;
+		queryEnd = targetEnd;
+		// requests without a version are treated as HTTP/1.0
+		http11 = targetEnd < lineEnd
+			&& equalsIgnoreCase(bytes, targetEnd + 1, trimEnd(bytes, targetEnd + 1, lineEnd), "HTTP/1.1");
+		
+		close = false;
+		keepAlive = false;
+		contentLength = 0;
+		for(int start = next(bytes, lineEnd); start < end; start = next(bytes, lineEnd))
+		{
+			lineEnd = lineEnd(bytes, start);
+			int colon = indexOf(bytes, start, lineEnd, (byte)':');
+			if(colon < 0)
+				continue;
+			int nameEnd = trimEnd(bytes, start, colon);
+			int valueStart = trimStart(bytes, colon + 1, lineEnd);
+			int valueEnd = trimEnd(bytes, valueStart, lineEnd);
+			if(equalsIgnoreCase(bytes, start, nameEnd, "Content-Length"))
+				contentLength = parseLength(bytes, valueStart, valueEnd);
+			else if(equalsIgnoreCase(bytes, start, nameEnd, "Connection"))
+				connection(bytes, valueStart, valueEnd);
+			else if(equalsIgnoreCase(bytes, start, nameEnd, "Transfer-Encoding"))
+				throw new Malformed("411 Length Required"); // chunked bodies are not supported
+		}
+		unread = contentLength;
+	}
+	
+	/**
+	 * Notes the options of a {@code Connection} header, which is a comma
+	 * separated list
+	 */
+	private void connection(byte[] bytes, int start, int end)
+	{
+		while(start < end)
+		{
+			int comma = indexOf(bytes, start, end, (byte)',');
+			if(comma < 0)
+				comma = end;
+			int optionStart = trimStart(bytes, start, comma);
+			int optionEnd = trimEnd(bytes, optionStart, comma);
+			if(equalsIgnoreCase(bytes, optionStart, optionEnd, "close"))
+				close = true;
+			else if(equalsIgnoreCase(bytes, optionStart, optionEnd, "keep-alive"))
+				keepAlive = true;
+			start = comma + 1;
+		}
+	}
+	
+	private static long parseLength(byte[] bytes, int start, int end) throws Malformed
+	{
+		if(start == end)
+			throw new Malformed("400 Bad Request");
+		long length = 0;
+		for(int i = start; i < end; ++i)
+		{
+			if(bytes[i] < '0' || bytes[i] > '9')
+				throw new Malformed("400 Bad Request");
+			length = length * 10 + bytes[i] - '0';
+			if(length > MAX_BODY_SIZE)
+				throw new Malformed("413 Payload Too Large");
+		}
+		return length;
+	}
+	
+	/**
+	 * @return Whether the request uses the given method and is for the given
+	 *         path, regardless of case
+	 */
+	boolean is(String method, String path)
+	{
+		byte[] bytes = buffer.array();
+		return equalsIgnoreCase(bytes, 0, methodEnd, method)
+			&& equalsIgnoreCase(bytes, pathStart, pathEnd, path);
+	}
+	
+	/**
+	 * @return The method of the request
+	 */
+	String method()
+	{
+		return new String(buffer.array(), 0, methodEnd, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * @return The request target, including any query string
+	 */
+	String target()
+	{
+		return new String(buffer.array(), pathStart, queryEnd - pathStart, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Reads a whole number from the query string of the request
+	 * 
+	 * @param name
+	 *            The name of the query parameter
+	 * @param defaultValue
+	 *            The number to return if the parameter is missing or is not a
+	 *            whole number
+	 * @return The value of the query parameter
+	 */
+	long queryLong(String name, long defaultValue)
+	{
+		int start = queryValue(name);
+		if(start < 0)
+			return defaultValue;
+		return parseLong(buffer.array(), start, valueEnd(start), defaultValue);
+	}
+	
+	/**
+	 * Reads a parameter from the query string of the request, URL-decoded
+	 * 
+	 * @param name
+	 *            The name of the query parameter
+	 * @return The value of the query parameter, or {@code null} if it is
+	 *         missing or malformed
+	 */
+	String query(String name)
+	{
+		int start = queryValue(name);
+		if(start < 0)
+			return null;
+		try
+		{
+			return URLDecoder.decode(new String(buffer.array(), start, valueEnd(start) - start,
+				StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * @return Where the value of the given query parameter starts, or -1 if
+	 *         the parameter is missing
+	 */
+	private int queryValue(String name)
+	{
+		byte[] bytes = buffer.array();
+		for(int start = pathEnd + 1; start < queryEnd;)
+		{
+			int end = valueEnd(start);
+			int equals = indexOf(bytes, start, end, (byte)'=');
+			if(equals >= 0 && equalsIgnoreCase(bytes, start, equals, name))
+				return equals + 1;
+			start = end + 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return Where the query parameter, or its value, starting at the given
+	 *         index ends
+	 */
+	private int valueEnd(int start)
+	{
+		int end = indexOf(buffer.array(), start, queryEnd, (byte)'&');
+		return end < 0 ? queryEnd : end;
+	}
+	
+	private static long parseLong(byte[] bytes, int start, int end, long defaultValue)
+	{
+		boolean negative = start < end && bytes[start] == '-';
+		if(negative)
+			++start;
+		if(start == end || end - start > 18)
+			return defaultValue;
+		long value = 0;
+		for(int i = start; i < end; ++i)
+		{
+			if(bytes[i] < '0' || bytes[i] > '9')
+				return defaultValue;
+			value = value * 10 + bytes[i] - '0';
+		}
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Decides whether the connection persists after this request, which by
+	 * default is the case for HTTP/1.1 but not for HTTP/1.0
+	 */
+	boolean keepAlive()
+	{
+		return http11 ? !close : keepAlive && !close;
+	}
+	
+	/**
+	 * Reads the whole body of the request, which may arrive over several reads
+	 * 
+	 * @return The body of the request, or an empty string if there is none
+	 */
+	String body() throws IOException
+	{
+		var body = new byte[(int)unread];
+		int buffered = Math.min(body.length, buffer.remaining());
+		buffer.get(body, 0, buffered);
+		int read = buffered;
+		while(read < body.length)
+		{
+			int n = in.read(body, read, body.length - read);
+			if(n < 0)
+				throw new EOFException("Request body ended after " + read + " of " + body.length);
+			read += n;
+		}
+		unread = 0;
+		return new String(body, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Skips whatever is left unread of the body of the request, so that the
+	 * next pipelined request can be read
+	 */
+	private void discardBody() throws IOException
+	{
+		int buffered = (int)Math.min(unread, buffer.remaining());
+		buffer.position(buffer.position() + buffered);
+		in.skipNBytes(unread - buffered);
+		unread = 0;
+	}
+	
+	private static int lineEnd(byte[] bytes, int start)
+	{
+		int end = start;
+		while(bytes[end] != '\n')
+			++end;
+		return end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+	}
+	
+	/**
+	 * @return The start of the line after the one ending at {@code lineEnd}
+	 */
+	private static int next(byte[] bytes, int lineEnd)
+	{
+		return bytes[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+	}
+	
+	private static int indexOf(byte[] bytes, int start, int end, byte b)
+	{
+		for(int i = start; i < end; ++i)
+			if(bytes[i] == b)
+				return i;
+		return -1;
+	}
+	
+	private static int trimStart(byte[] bytes, int start, int end)
+	{
+		while(start < end && ( bytes[start] == ' ' || bytes[start] == '\t' ))
+			++start;
+		return start;
+	}
+	
+	private static int trimEnd(byte[] bytes, int start, int end)
+	{
+		while(end > start && ( bytes[end - 1] == ' ' || bytes[end - 1] == '\t' ))
+			--end;
+		return end;
+	}
+	
+	/**
+	 * Compares ASCII bytes to a string without regard to case
+	 */
+	private static boolean equalsIgnoreCase(byte[] bytes, int start, int end, String s)
+	{
+		if(end - start != s.length())
+			return false;
+		for(int i = 0; i < s.length(); ++i)
+		{
+			int b = bytes[start + i], c = s.charAt(i);
+			if(b == c)
+				continue;
+			int lower = c | 0x20;
+			if(lower < 'a' || lower > 'z' || ( b | 0x20 ) != lower)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Thrown when a request cannot be served because it is malformed or too
+	 * large, and the connection cannot be trusted to carry another request
+	 */
+	static final class Malformed extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		/**
+		 * The status to answer with, such as {@code 400 Bad Request}
+		 */
+		final String code;
+		
+		Malformed(String code)
+		{
+			super(code);
+			this.code = code;
+		}
+	}
+}
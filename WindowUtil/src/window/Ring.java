@@ -0,0 +1,270 @@
+package window;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A ring buffer of action sequences in a memory-mapped file, written by the
+ * key {@link Server} and read by any number of consumers, in this or other
+ * processes, each sequence by exactly one of them. Intentionally package
+ * protected.
+ * <p>
+ * The file is a header followed by a power of two of fixed size slots, all
+ * numbers little-endian:
+ * 
+ * <pre>
+ * offset  size  header
+ *   0     4     magic, "KSRB" (0x4252534B)
+ *   4     4     version, 1
+ *   8     4     slot count, a power of two
+ *  12     4     slot size in bytes, a multiple of 8
+ * 128     8     claimed: the position of the next record to be claimed
+ * 256           the slots
+ * 
+ * offset  size  slot
+ *   0     8     stamp
+ *   8     4     how many slots the record spans            first slot only
+ *  12     4     title length in bytes                      first slot only
+ *  16     4     sequence length in bytes                   first slot only
+ *  20           title, then sequence, UTF-8, carried on from byte 8 of
+ *               each following slot the record spans
+ * </pre>
+ * 
+ * Every slot is written at increasing positions, position {@code p} being
+ * slot {@code p mod count}. A slot's stamp tells its state at position
+ * {@code p}: {@code p} when it is free to be written, and {@code p + 1} once a
+ * record has been published in it. A record spanning {@code n} slots starts
+ * at position {@code p}, and ends before {@code p + n}.
+ * <p>
+ * The server writes the slots of a record once each is free, stamps every
+ * slot but the first, and then the first. A consumer claims the record at
+ * {@code claimed} once the first slot's stamp shows it published, by
+ * advancing {@code claimed} past it with a compare and swap; it then reads
+ * the record and frees each of its slots for the position one lap ahead,
+ * {@code p + count}. Stamps and {@code claimed} are read with acquire and
+ * written with release semantics, so that what was written before them is
+ * seen by whoever reads them.
+ * <p>
+ * The header is written last when the server creates the file, so a
+ * consumer that finds the magic number may trust the rest.
+ * 
+ * @author ratha
+ */
+final class Ring
+{
+	static final int MAGIC = 0x4252534B;
+	static final int VERSION = 1;
+	static final int HEADER = 256;
+	private static final int SLOT_COUNT = 8;
+	private static final int SLOT_SIZE = 12;
+	private static final int CLAIMED = 128;
+	private static final int SPAN = 8;
+	private static final int TITLE_LENGTH = 12;
+	private static final int SEQUENCE_LENGTH = 16;
+	/**
+	 * Where the record's bytes start in its first slot, and in the slots after
+	 */
+	static final int FIRST_DATA = 20, DATA = 8;
+	private static final VarHandle LONG =
+		MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT =
+		MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	final MappedByteBuffer buffer;
+	final int count;
+	final int slotSize;
+	private final long mask;
+	
+	private Ring(MappedByteBuffer buffer, int count, int slotSize)
+	{
+		this.buffer = buffer;
+		this.count = count;
+		this.slotSize = slotSize;
+		this.mask = count - 1;
+	}
+	
+	/**
+	 * Creates the ring file afresh, discarding whatever it held
+	 * 
+	 * @param slots
+	 *            How many slots the ring has, rounded up to a power of two
+	 * @param slotSize
+	 *            How many bytes each slot has, rounded up to a multiple of 8
+	 */
+	static Ring create(Path file, int slots, int slotSize) throws IOException
+	{
+		int count = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+		int size = Math.max(32, ( slotSize + 7 ) & ~7);
+		MappedByteBuffer buffer;
+		try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)count * size);
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		var ring = new Ring(buffer, count, size);
+		for(long p = 0; p < count; ++p)
+			LONG.setRelease(buffer, ring.offset(p), p);
+		LONG.setRelease(buffer, CLAIMED, 0L);
+		buffer.putInt(4, VERSION).putInt(SLOT_COUNT, count).putInt(SLOT_SIZE, size);
+		INT.setRelease(buffer, 0, MAGIC);
+		return ring;
+	}
+	
+	/**
+	 * Maps a ring file the server has created
+	 * 
+	 * @throws IOException
+	 *             If the file is not a ring, or not yet one
+	 */
+	static Ring open(Path file) throws IOException
+	{
+		MappedByteBuffer buffer;
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if(buffer.capacity() < HEADER || (int)INT.getAcquire(buffer, 0) != MAGIC)
+			throw new IOException(file + " is not a key server ring");
+		if(buffer.getInt(4) != VERSION)
+			throw new IOException(file + " is a ring of unknown version " + buffer.getInt(4));
+		int count = buffer.getInt(SLOT_COUNT);
+		int size = buffer.getInt(SLOT_SIZE);
+		if(Integer.bitCount(count) != 1 || size < 32 || HEADER + (long)count * size > buffer.capacity())
+			throw new IOException(file + " has a malformed ring header");
+		return new Ring(buffer, count, size);
+	}
+	
+	/**
+	 * @return Where the slot for the given position starts
+	 */
+	int offset(long position)
+	{
+		return HEADER + (int)( position & mask ) * slotSize;
+	}
+	
+	long stamp(long position)
+	{
+		return (long)LONG.getAcquire(buffer, offset(position));
+	}
+	
+	void stamp(long position, long stamp)
+	{
+		LONG.setRelease(buffer, offset(position), stamp);
+	}
+	
+	long claimed()
+	{
+		return (long)LONG.getAcquire(buffer, CLAIMED);
+	}
+	
+	boolean claim(long position, long next)
+	{
+		return LONG.compareAndSet(buffer, CLAIMED, position, next);
+	}
+	
+	/**
+	 * @return How many slots a record of the given length spans
+	 */
+	int span(int length)
+	{
+		int first = slotSize - FIRST_DATA;
+		if(length <= first)
+			return 1;
+		int rest = slotSize - DATA;
+		return 1 + ( length - first + rest - 1 ) / rest;
+	}
+	
+	/**
+	 * Writes the header and bytes of a record into the slots from the given
+	 * position on, without stamping them
+	 */
+	void write(long position, int span, byte[] title, byte[] sequence)
+	{
+		int offset = offset(position);
+		buffer.putInt(offset + SPAN, span).putInt(offset + TITLE_LENGTH, title.length)
+			.putInt(offset + SEQUENCE_LENGTH, sequence.length);
+		var bytes = new Cursor(position);
+		bytes.put(title);
+		bytes.put(sequence);
+	}
+	
+	int span(long position)
+	{
+		return buffer.getInt(offset(position) + SPAN);
+	}
+	
+	/**
+	 * Reads the title and sequence of the record claimed at the given position
+	 */
+	byte[][] read(long position)
+	{
+		int offset = offset(position);
+		var title = new byte[buffer.getInt(offset + TITLE_LENGTH)];
+		var sequence = new byte[buffer.getInt(offset + SEQUENCE_LENGTH)];
+		var bytes = new Cursor(position);
+		bytes.get(title);
+		bytes.get(sequence);
+		return new byte[][] { title, sequence };
+	}
+	
+	/**
+	 * Walks the bytes of a record across the slots it spans
+	 */
+	private final class Cursor
+	{
+		private long position;
+		private int at;
+		private int end;
+		
+		Cursor(long position)
+		{
+			this.position = position;
+			this.at = offset(position) + FIRST_DATA;
+			this.end = offset(position) + slotSize;
+		}
+		
+		void put(byte[] bytes)
+		{
+			for(int done = 0; done < bytes.length;)
+			{
+				int n = Math.min(bytes.length - done, room());
+				buffer.put(at, bytes, done, n);
+				at += n;
+				done += n;
+			}
+		}
+		
+		void get(byte[] bytes)
+		{
+			for(int done = 0; done < bytes.length;)
+			{
+				int n = Math.min(bytes.length - done, room());
+				buffer.get(at, bytes, done, n);
+				at += n;
+				done += n;
+			}
+		}
+		
+		/**
+		 * @return How many bytes are left in the current slot, moving on to
+		 *         the next slot if there are none
+		 */
+		private int room()
+		{
+			if(at == end)
+			{
+				++position;
+				at = offset(position) + DATA;
+				end = offset(position) + slotSize;
+			}
+			return end - at;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package window;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads action sequences from the ring buffer file the key {@link Server}
+ * publishes them into, as set by {@code ring-file}, without going through
+ * HTTP. Any number of consumers, in any number of processes, may read the
+ * same ring, and each sequence goes to exactly one of them. A sequence is
+ * handed out as soon as it is claimed, so one claimed by a consumer that dies
+ * before executing it is lost, as with {@code GET /actionsequence}.
+ * <p>
+ * This is the reference implementation of a ring consumer: the layout of the
+ * file, and the protocol by which consumers claim records, are documented on
+ * the ring itself, so consumers may be written in other languages. The file
+ * stays mapped until the consumer is garbage collected.
+ * 
+ * @author ratha
+ */
+public final class RingConsumer
+{
+	private final Ring ring;
+	
+	/**
+	 * @param file
+	 *            The ring file, which the server must have created
+	 * @throws IOException
+	 *             If the file could not be mapped, or is not a ring
+	 */
+	public RingConsumer(Path file) throws IOException
+	{
+		ring = Ring.open(file);
+	}
+	
+	/**
+	 * Takes the next action sequence, waiting up to {@code timeout}
+	 * milliseconds for one to be published. Waiting spins briefly, then sleeps
+	 * for growing intervals of up to a millisecond.
+	 * 
+	 * @param timeout
+	 *            How many milliseconds to wait, or 0 to return immediately
+	 * @return The action sequence, as a (title, sequence) pair, or
+	 *         {@code null} if none was published in time
+	 */
+	public Map.Entry<String, String> poll(long timeout)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		for(int idle = 0;; ++idle)
+		{
+			long position = ring.claimed();
+			long published = ring.stamp(position) - ( position + 1 );
+			if(published == 0)
+			{
+				int span = ring.span(position);
+				if(ring.claim(position, position + span))
+				{
+					byte[][] record = ring.read(position);
+					for(int i = 0; i < span; ++i)
+						ring.stamp(position + i, position + i + ring.count);
+					return Map.entry(new String(record[0], StandardCharsets.UTF_8),
+						new String(record[1], StandardCharsets.UTF_8));
+				}
+				idle = 0;
+			}
+			else if(published < 0)
+			{
+				// nothing published at the next position yet
+				if(System.nanoTime() - deadline >= 0)
+					return null;
+				if(idle < 100)
+					Thread.onSpinWait();
+				else
+					LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(Math.min(1000, idle - 99)));
+			}
+			// otherwise another consumer claimed the record first
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package window;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes action sequences off the queue as they are accepted, and publishes
+ * them into a {@link Ring} file for consumers outside the JVM to read.
+ * Intentionally package protected.
+ * <p>
+ * A sequence is taken off the queue only once there is room for it in the
+ * ring, so the ring never holds more than it has slots for. Sequences that
+ * need more room than the whole ring has are dropped with an error.
+ * 
+ * @author ratha
+ */
+final class RingPublisher
+{
+	/**
+	 * How long the publisher waits for a sequence before looking again whether
+	 * it should stop, in milliseconds
+	 */
+	private static final long POLL_INTERVAL = 1000;
+	private static RingPublisher running;
+	private final Ring ring;
+	private final Thread thread;
+	private volatile boolean stopped;
+	/**
+	 * The position at which the next record is written
+	 */
+	private long next;
+	
+	private RingPublisher(Ring ring)
+	{
+		this.ring = ring;
+		this.thread = new Thread(this::run, "key-server-ring-publisher");
+		thread.setDaemon(true);
+	}
+	
+	/**
+	 * Creates the ring file afresh and starts publishing into it, in place of
+	 * any ring published into so far
+	 * 
+	 * @return Whether the ring file could be created
+	 */
+	static synchronized boolean serve(Path file, int slots, int slotSize)
+	{
+		shutdown();
+		try
+		{
+			running = new RingPublisher(Ring.create(file, slots, slotSize));
+			running.thread.start();
+			return true;
+		}
+		catch(IOException e)
+		{
+			System.err.println("Failed to create ring " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	static synchronized void shutdown()
+	{
+		if(running == null)
+			return;
+		running.stopped = true;
+		running.thread.interrupt();
+		try
+		{
+			running.thread.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		running = null;
+	}
+	
+	private void run()
+	{
+		while(!stopped)
+		{
+			// wait for room for a sequence of any size before taking one
+			if(!awaitFree(next))
+				break;
+			Action action;
+			try
+			{
+				action = Server.actionSequence.poll(POLL_INTERVAL);
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			if(action != null && !publish(action))
+				restore(action);
+		}
+	}
+	
+	/**
+	 * Publishes a sequence into the ring, waiting for its slots to be free
+	 * 
+	 * @return Whether the sequence was published or dropped, rather than left
+	 *         over because the publisher is stopping
+	 */
+	private boolean publish(Action action)
+	{
+		byte[] title = action.title.getBytes(StandardCharsets.UTF_8);
+		byte[] sequence = action.sequence.getBytes(StandardCharsets.UTF_8);
+		int span = ring.span(title.length + sequence.length);
+		if(span > ring.count)
+		{
+			System.err.println("Action sequence for " + action.title + " is too long for the ring: dropped");
+			return true;
+		}
+		for(int i = 0; i < span; ++i)
+			if(!awaitFree(next + i))
+				return false;
+		ring.write(next, span, title, sequence);
+		for(int i = span - 1; i >= 0; --i)
+			ring.stamp(next + i, next + i + 1);
+		next += span;
+		Server.metrics.delivered(action);
+		return true;
+	}
+	
+	/**
+	 * Waits for the slot at the given position to have been read at the
+	 * position a lap behind, spinning briefly before sleeping
+	 * 
+	 * @return Whether the slot is free, rather than the publisher stopping
+	 */
+	private boolean awaitFree(long position)
+	{
+		for(int spins = 0; ring.stamp(position) != position; ++spins)
+		{
+			if(stopped)
+				return false;
+			if(spins < 100)
+				Thread.onSpinWait();
+			else
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(Math.min(1000, spins - 99)));
+		}
+		return true;
+	}
+	
+	private static void restore(Action action)
+	{
+		try
+		{
+			Server.actionSequence.restore(List.of(action));
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not log restored action sequence: " + e.getMessage());
+		}
+	}
+}
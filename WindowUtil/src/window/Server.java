@@ -1,26 +1,30 @@
 package window;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Date;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import throwing.Catcher;
 import throwing.Throwing;
@@ -38,7 +42,8 @@ public class Server
 	 * Launches a server to communicate with an AutoHotKey executable that sends
 	 * keys to windows in the background. Both the server and the executable
 	 * cease to function at the moment that the JVM exits, if {@code daemon} is
-	 * set to true.
+	 * set to true. Connections are served by the engine configured through
+	 * {@code server-engine} in {@code winUtil.config}.
 	 * 
 	 * @param daemon
 	 *            Whether to launch the server on a daemon thread
@@ -46,38 +51,127 @@ public class Server
 	 */
 	public static boolean launch(boolean daemon)
 	{
-		System.out.println("Launching key server on port " + PORT + "...");
+		return launch(daemon, ENGINE);
+	}
+	
+	/**
+	 * Launches a server to communicate with an AutoHotKey executable that sends
+	 * keys to windows in the background, serving connections with the given
+	 * engine.
+	 * 
+	 * @param daemon
+	 *            Whether to launch the server on a daemon thread
+	 * @param engine
+	 *            The model by which accepted connections are served
+	 * @return Whether the server was successfully launched
+	 * @see Server#launch(boolean)
+	 */
+	public static boolean launch(boolean daemon, ServerEngine engine)
+	{
+		if(!serve(daemon, engine))
+			return false;
+		try
+		{
+			var process = new ProcessBuilder("resources/KeySender.exe", "" + PORT).start();
+			System.out.println("KeySender launched!");
+			Runtime.getRuntime().addShutdownHook(new Thread(() ->
+			{
+				process.destroy();
+				System.out.println("KeySender terminated.");
+			}));
+			return true;
+		}
+		catch(Exception e)
+		{
+			System.err.println("Failed to launch KeySender: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Starts serving {@code /actionsequence} on {@code send-key-port} without
+	 * launching KeySender, so that another consumer may poll for key sequences.
+	 * At most {@code max-connections} connections are served at once; further
+	 * connections wait in the socket backlog until one completes.
+	 * 
+	 * @param daemon
+	 *            Whether to run the accepting thread as a daemon thread
+	 * @param engine
+	 *            The model by which accepted connections are served
+	 * @return Whether the server was successfully started
+	 * @see Server#shutdown()
+	 */
+	public static synchronized boolean serve(boolean daemon, ServerEngine engine)
+	{
+		System.out.println("Launching key server on port " + PORT + " (" + engine + ")...");
 		try
 		{
-			@SuppressWarnings( "resource" ) // closed when the VM shuts down
-			var s = new ServerSocket(PORT, 0, InetAddress.getByName("localhost"));
+			// an engine the JVM cannot run is refused before the port is bound
+			var executor = engine.newExecutor(MAX_CONNECTIONS);
+			@SuppressWarnings( "resource" ) // closed on shutdown or when the VM shuts down
+			var s = new ServerSocket();
+			// connections closed by a previous server must not block a restart
+			s.setReuseAddress(true);
+			s.bind(new InetSocketAddress(InetAddress.getByName("localhost"), PORT));
 			Runtime.getRuntime().addShutdownHook(new Thread(Throwing.of(s::close)));
+			var permits = new Semaphore(MAX_CONNECTIONS);
 			var serverThread = new Thread(ThrowingRunnable.of(() ->
 			{
-				while(true)
+				try
+				{
+					while(true)
+					{
+						permits.acquire();
+						Socket a;
+						try
+						{
+							a = s.accept();
+						}
+						catch(IOException e)
+						{
+							permits.release();
+							throw e;
+						}
+						/*
+						 * Although the parent may be a daemon, the platform
+						 * thread engines want connections to be processed before
+						 * exiting the JVM
+						 */
+						executor.execute(() ->
+						{
+							try
+							{
+								run(a);
+							}
+							finally
+							{
+								permits.release();
+							}
+						});
+					}
+				}
+				finally
 				{
-					Socket a = s.accept();
-					var acceptor = new Thread(() -> run(a));
-					/*
-					 * Although the parent may be a daemon, we want connections
-					 * to be processed before exiting the JVM
-					 */
-					acceptor.setDaemon(false);
-					acceptor.start();
+					// only the acceptor submits connections, so the engine's idle
+					// threads may go once it stops, while accepted connections are
+					// still served to completion
+					if(executor instanceof ExecutorService)
+						((ExecutorService)executor).shutdown();
 				}
 			}, Catcher
 				.of(SocketException.class, (e) -> System.out.println("Server dead: Socket closed."))
-				.andThen(Catcher.of((e) -> System.out.println("Server dead: " + e.getMessage())))));
+				.andThen(Catcher.of((e) -> System.out.println("Server dead: " + e.getMessage())))),
+				"key-server-acceptor");
 			serverThread.setDaemon(daemon);
 			serverThread.start();
-			System.out.println("Server up and running!");
-			var process = new ProcessBuilder("resources/KeySender.exe", "" + PORT).start();
-			System.out.println("KeySender launched!");
-			Runtime.getRuntime().addShutdownHook(new Thread(() ->
+			socket = s;
+			if(PUSH_PORT > 0 && !PushServer.serve(PUSH_PORT)
+				|| !RING_FILE.isEmpty() && !serveRing(Path.of(RING_FILE)))
 			{
-				process.destroy();
-				System.out.println("KeySender terminated.");
-			}));
+				shutdown();
+				return false;
+			}
+			System.out.println("Server up and running!");
 			return true;
 		}
 		catch(Exception e)
@@ -87,115 +181,341 @@ public class Server
 		}
 	}
 	
-	static final File ROOT = new File(".");
-	static final boolean verbose = false;
-	static final ConcurrentLinkedQueue<String> actionSequence = new ConcurrentLinkedQueue<>();
-	static final Charset utf8 = StandardCharsets.UTF_8;
-	static final int PORT;
-	static volatile ReadyState isReady = ReadyState.BUSY;
-	static
+	/**
+	 * Stops accepting connections on {@code send-key-port}. Connections already
+	 * accepted are still served to completion.
+	 */
+	public static synchronized void shutdown()
 	{
+		if(socket == null)
+			return;
 		try
 		{
-			WinUtil.properties.computeIfPresent("send-key-port", (a, b) -> WinUtil
-				.readProperty(WinUtil.cleanComments().andThen(Integer::parseInt), b));
+			socket.close();
 		}
-		catch(NumberFormatException e)
+		catch(IOException e)
 		{
-			e.printStackTrace();
-			System.err.println(
-				"WinUtil Key Server failed to load resources: Check that config settings are correct");
+			System.err.println("Error closing server socket : " + e.getMessage());
 		}
-		PORT = (int) WinUtil.properties.getOrDefault("send-key-port", 6060);
+		socket = null;
+		PushServer.shutdown();
+		RingPublisher.shutdown();
+	}
+	
+	/**
+	 * Starts streaming action sequences to {@link PushConsumer}s, in place of
+	 * the port set by {@code push-port}
+	 * 
+	 * @param port
+	 *            The port of localhost to accept consumers on, or 0 for any
+	 *            free port
+	 * @return Whether the port could be bound
+	 * @see Server#pushPort()
+	 * @see Server#stopPush()
+	 */
+	public static boolean servePush(int port)
+	{
+		return PushServer.serve(port);
+	}
+	
+	/**
+	 * Stops accepting push consumers. Consumers already connected are still
+	 * streamed to.
+	 */
+	public static void stopPush()
+	{
+		PushServer.shutdown();
+	}
+	
+	/**
+	 * Starts publishing accepted action sequences into a ring buffer file, for
+	 * a {@link RingConsumer} in this or another process to read, in place of
+	 * the ring set by {@code ring-file}. The ring has {@code ring-slots} slots
+	 * of {@code ring-slot-size} bytes. Sequences published into the ring are
+	 * no longer handed out over HTTP.
+	 * 
+	 * @param file
+	 *            The ring file, which is created afresh
+	 * @return Whether the ring file could be created
+	 * @see Server#stopRing()
+	 */
+	public static boolean serveRing(Path file)
+	{
+		return RingPublisher.serve(file, RING_SLOTS, RING_SLOT_SIZE);
+	}
+	
+	/**
+	 * Stops publishing action sequences into the ring file, so that they are
+	 * handed out over HTTP again. Sequences already in the ring stay there for
+	 * consumers to read.
+	 */
+	public static void stopRing()
+	{
+		RingPublisher.shutdown();
+	}
+	
+	static final File ROOT = new File(".");
+	static final boolean verbose = false;
+	static final int QUEUE_CAPACITY = Math.max(1, Config.readInt("action-queue-capacity", 10000));
+	static final int RETRY_AFTER = Math.max(0, Config.readInt("retry-after", 1));
+	static final ActionQueue actionSequence = new ActionQueue(QUEUE_CAPACITY,
+		(title) -> Config.readInt("window-weight." + title, 1),
+		new Pacer((title) -> Config.read("window-rate." + title, Double::parseDouble, 0.0),
+			(title) -> Config.readInt("window-burst." + title, 1)),
+		ActionLog.open());
+	static final Charset utf8 = StandardCharsets.UTF_8;
+	static final int PORT = Config.readInt("send-key-port", 6060);
+	static final int PUSH_PORT = Config.readInt("push-port", 0);
+	static final String RING_FILE = Config.read("ring-file", String::valueOf, "");
+	static final int RING_SLOTS = Config.readInt("ring-slots", 4096);
+	static final int RING_SLOT_SIZE = Config.readInt("ring-slot-size", 256);
+	static final ServerEngine ENGINE =
+		Config.read("server-engine", ServerEngine::parse, ServerEngine.THREAD_PER_CONNECTION);
+	static final int MAX_CONNECTIONS = Math.max(1, Config.readInt("max-connections", 256));
+	static final int KEEP_ALIVE_TIMEOUT = Math.max(0, Config.readInt("keep-alive-timeout", 5000));
+	static final int KEEP_ALIVE_MAX = Math.max(1, Config.readInt("keep-alive-max", 1000));
+	static final int BATCH_MAX = Math.max(1, Config.readInt("batch-max", 1000));
+	static final long LONG_POLL_TIMEOUT = Math.max(0, Config.readInt("long-poll-timeout", 0));
+	static final long LEASE_TIMEOUT = Math.max(0, Config.readInt("lease-timeout", 30000));
+	static final boolean COALESCE_DUPLICATES =
+		Config.read("coalesce-duplicates", Boolean::parseBoolean, false);
+	static final Metrics metrics = new Metrics();
+	private static final CachedResponse notImplemented =
+		new CachedResponse(new File(ROOT, "not_implemented.html"), "501 Not Implemented");
+	private static final CachedResponse notFound =
+		new CachedResponse(new File(ROOT, "404.html"), "404 File Not Found");
+	private static volatile HttpDate date = new HttpDate(-1, "");
+	private static volatile ServerSocket socket;
+	
+	/**
+	 * @return The port of localhost on which the server listens, as set by
+	 *         {@code send-key-port}
+	 */
+	public static int port()
+	{
+		return PORT;
 	}
 	
+	/**
+	 * @return The port of localhost on which action sequences are streamed to
+	 *         a {@link PushConsumer}, as set by {@code push-port} or given to
+	 *         {@link Server#servePush(int)}, or 0 if streaming is off
+	 */
+	public static int pushPort()
+	{
+		return PushServer.port();
+	}
+	
+	/**
+	 * @return The most action sequences the server queues before refusing more,
+	 *         as set by {@code action-queue-capacity}
+	 */
+	public static int capacity()
+	{
+		return QUEUE_CAPACITY;
+	}
+	
+	/**
+	 * Determines whether KeySender is idle: it has asked for work since the last
+	 * action sequence was posted or handed out, and found none
+	 * 
+	 * @return Whether every posted action sequence has been picked up
+	 */
 	public static boolean ready()
 	{
-		return isReady == ReadyState.READY;
+		return actionSequence.ready();
+	}
+	
+	/**
+	 * Waits until KeySender is idle, as determined by {@link Server#ready()}
+	 * 
+	 * @param timeout
+	 *            How many milliseconds to wait at most
+	 * @return Whether KeySender became idle in time
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public static boolean awaitReady(long timeout) throws InterruptedException
+	{
+		return actionSequence.awaitReady(timeout);
 	}
 	
+	/**
+	 * Serves requests on an accepted connection until the client asks to close
+	 * it, the connection sits idle for {@code keep-alive-timeout} milliseconds,
+	 * or {@code keep-alive-max} requests have been served on it. Pipelined
+	 * requests are answered in the order they were received.
+	 * 
+	 * @param connect
+	 *            The accepted connection
+	 */
 	public static void run(Socket connect)
 	{
-		BufferedReader in = null;
-		PrintWriter out = null;
+		RequestParser in = null;
 		BufferedOutputStream dataOut = null;
 		String request = null;
+		int served = 0;
+		metrics.connection();
 		try
 		{
-			in = new BufferedReader(new InputStreamReader(connect.getInputStream()));
-			out = new PrintWriter(connect.getOutputStream());
+			connect.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			// responses are written whole, so there is nothing for Nagle to coalesce
+			connect.setTcpNoDelay(true);
+			in = new RequestParser(connect.getInputStream());
 			dataOut = new BufferedOutputStream(connect.getOutputStream());
 			
-			// get first line of the request from the client
-			String input = in.readLine();
-			if(input == null)
-			{
-				textResponse(out, dataOut, "");
-				return;
-			}
-			if(verbose)
-				System.out.println("Request: " + input);
-			request = input;
-			var parse = new StringTokenizer(input);
-			String method = parse.nextToken().toUpperCase();
-			request = parse.nextToken().toLowerCase();
-			
-			if(method.equals("POST") && request.equals("/actionsequence"))
+			boolean keepAlive = true;
+			while(keepAlive)
 			{
-				var params = new HashMap<String, String>();
-				String line = "";
-				while(!( line = in.readLine() ).equals(""))
+				// get the request line and headers of the next request from the client
+				try
+				{
+					if(!in.next())
+					{
+						if(served == 0)
+							textResponse(dataOut, "", false, served);
+						break;
+					}
+				}
+				catch(SocketTimeoutException e)
+				{
+					break; // idle for too long
+				}
+				catch(RequestParser.Malformed e)
 				{
-					String[] mapping = line.split(":", 2);
-					params.put(mapping[0].trim(), mapping[1].trim());
+					textResponse(dataOut, e.code, "text/plain", e.code, false, served + 1);
+					lingeringClose(connect);
+					break;
 				}
-				// params.entrySet().forEach(System.out::println);
-				int length = Integer.parseInt(params.get("Content-Length"));
-				var buffer = new char[length];
-				int actualRead = in.read(buffer, 0, length);
-				var s = new String(buffer, 0, actualRead);
-				String[] info = s.split("=", 2);
+				++served;
+				metrics.request();
 				if(verbose)
-					System.out.println("Read: " + s);
-				synchronized (isReady)
 				{
-					isReady = ReadyState.BUSY;
-					actionSequence.offer(
-						URLDecoder.decode(info[0], utf8) + "=" + URLDecoder.decode(info[1], utf8));
+					request = in.target();
+					System.out.println("Request: " + in.method() + " " + request);
 				}
-				textResponse(out, dataOut, "Action sequence accepted");
-			}
-			else if(method.equals("GET") && request.equals("/actionsequence"))
-			{
-				String output = "";
-				synchronized (isReady)
+				keepAlive = in.keepAlive() && served < KEEP_ALIVE_MAX;
+				
+				if(in.is("POST", "/actionsequence"))
+				{
+					String s = in.body();
+					if(verbose)
+						System.out.println("Read: " + s);
+					Action action = decodeAction(s, priority(in), deadline(in), in.query("coalesce"));
+					if(action == null)
+						textResponse(dataOut, "400 Bad Request", "text/plain",
+							"Malformed action sequence: expected title=sequence, form-encoded", keepAlive, served);
+					else if(accept(List.of(action)))
+						textResponse(dataOut, "Action sequence accepted", keepAlive, served);
+					else
+						textResponse(dataOut, "503 Service Unavailable", "text/plain",
+							"Action sequence queue is full: try again later", keepAlive, served);
+				}
+				else if(in.is("GET", "/actionsequence"))
+				{
+					// park until a sequence arrives, for at most the requested wait
+					Action output = null;
+					try
+					{
+						output = actionSequence.poll(in.queryLong("wait", LONG_POLL_TIMEOUT));
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						keepAlive = false;
+					}
+					if(output != null)
+						metrics.delivered(output);
+					textResponse(dataOut, output == null ? "" : output.toString(), keepAlive, served);
+				}
+				else if(in.is("POST", "/actionsequence/batch"))
+				{
+					String s = in.body();
+					if(verbose)
+						System.out.println("Read: " + s);
+					List<Action> batch = decodeBatch(s, priority(in), deadline(in));
+					if(batch == null)
+						textResponse(dataOut, "400 Bad Request", "text/plain",
+							"Malformed action sequence batch: nothing was accepted", keepAlive, served);
+					else if(accept(batch))
+						textResponse(dataOut, batch.size() + " action sequences accepted", keepAlive,
+							served);
+					else
+						textResponse(dataOut, "503 Service Unavailable", "text/plain",
+							"Action sequence queue is full: nothing was accepted", keepAlive, served);
+				}
+				else if(in.is("GET", "/actionsequence/batch"))
+				{
+					int max = (int) Math.max(1, Math.min(BATCH_MAX, in.queryLong("max", BATCH_MAX)));
+					List<Action> batch = List.of();
+					try
+					{
+						batch = actionSequence.drain(max, in.queryLong("wait", LONG_POLL_TIMEOUT));
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						keepAlive = false;
+					}
+					for(Action action : batch)
+						metrics.delivered(action);
+					textResponse(dataOut, "200 OK", "application/x-www-form-urlencoded",
+						encodeBatch(batch), keepAlive, served);
+				}
+				else if(in.is("GET", "/actionsequence/lease"))
 				{
-					if(!actionSequence.isEmpty())
+					ActionQueue.Lease lease = null;
+					try
 					{
-						isReady = ReadyState.BUSY;
-						output = actionSequence.poll();
+						lease = actionSequence.lease(in.queryLong("visibility", LEASE_TIMEOUT),
+							in.queryLong("wait", LONG_POLL_TIMEOUT));
 					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						keepAlive = false;
+					}
+					if(lease != null)
+						metrics.delivered(lease.sequence);
+					textResponse(dataOut, "200 OK", "application/x-www-form-urlencoded",
+						lease == null ? "" : "lease=" + lease.id + "&" + encodeBatch(List.of(lease.sequence)),
+						keepAlive, served);
+				}
+				else if(in.is("POST", "/actionsequence/ack"))
+				{
+					if(actionSequence.acknowledge(decodeLease(in.body())))
+						textResponse(dataOut, "Lease acknowledged", keepAlive, served);
 					else
-						isReady = ReadyState.READY;
+						textResponse(dataOut, "409 Conflict", "text/plain",
+							"No such lease: it may have run out, and its action sequence been handed out again",
+							keepAlive, served);
 				}
-				textResponse(out, dataOut, output);
-			}
-			else
-			{
-				if(verbose)
+				else if(in.is("GET", "/actionsequence/depth"))
 				{
-					System.out.println("501 Not Implemented : " + method);
+					textResponse(dataOut, "200 OK", "application/x-www-form-urlencoded",
+						encodeDepths(actionSequence.depths()), keepAlive, served);
+				}
+				else if(in.is("GET", "/metrics"))
+				{
+					textResponse(dataOut, "200 OK", "text/plain; version=0.0.4; charset=utf-8",
+						metrics.scrape(actionSequence), keepAlive, served);
+				}
+				else
+				{
+					if(verbose)
+					{
+						System.out.println("501 Not Implemented : " + in.method());
+					}
+					// we return the not supported file to the client
+					notImplemented.write(dataOut, keepAlive, served);
 				}
-				// we return the not supported file to the client
-				fileResponse(out, dataOut, new File(ROOT, "not_implemented.html"),
-					"501 Not Implemented");
 			}
 		}
 		catch(NoSuchElementException | FileNotFoundException fnfe)
 		{
 			try
 			{
-				fileResponse(out, dataOut, new File(ROOT, "404.html"), "404 File Not Found");
+				notFound.write(dataOut, false, served);
 			}
 			catch(IOException ioe)
 			{
@@ -222,8 +542,7 @@ public class Server
 		{
 			try
 			{
-				in.close();
-				out.close();
+				in.release();
 				dataOut.close();
 				if(!connect.isClosed())
 					connect.close(); // we close socket connection
@@ -235,56 +554,417 @@ public class Server
 		}
 	}
 	
-	private static void fileResponse(PrintWriter out, OutputStream dataOut, File file, String code)
-		throws IOException
+	/**
+	 * Stops sending, then discards what the client is still sending for up to a
+	 * second. Closing with unread input would reset the connection, which can
+	 * destroy the response before the client reads it.
+	 */
+	private static void lingeringClose(Socket connect) throws IOException
 	{
-		int fileLength = (int) file.length();
-		String contentType = getContentType(file.getPath());
-		byte[] fileData = readFileData(file, fileLength);
-		
-		// we send HTTP Headers with data to client
-		out.println("HTTP/1.1 " + code);//
-		out.println("Server: Java HTTP Server : 1.0");
-		out.println("Date: " + new Date());
-		out.println("Content-type: " + contentType);
-		out.println("Content-length: " + fileLength);
-		out.println();
-		out.flush();
-		dataOut.write(fileData, 0, fileLength);
-		dataOut.flush();
+		connect.shutdownOutput();
+		connect.setSoTimeout(1000);
+		try
+		{
+			connect.getInputStream().transferTo(OutputStream.nullOutputStream());
+		}
+		catch(SocketTimeoutException e)
+		{
+			// the client has had its chance to read the response
+		}
 	}
 	
-	private static void textResponse(PrintWriter out, OutputStream dataOut, String output)
-		throws IOException
+	/**
+	 * @return How many action sequences are waiting to be picked up for each
+	 *         window title, in the order the windows will take turns
+	 */
+	public static Map<String, Integer> depths()
 	{
-		byte[] data = output.getBytes(utf8);
-		out.println("HTTP/1.1 200 OK");
-		out.println("Server: Java HTTP Server : 1.0");
-		out.println("Date: " + new Date());
-		out.println("Content-type: text/plain");
-		out.println("Content-length: " + data.length);
-		out.println();
-		out.flush();
-		
-		dataOut.write(data, 0, data.length);
-		dataOut.flush();
+		return actionSequence.depths();
+	}
+	
+	/**
+	 * Drops every action sequence waiting to be picked up, along with those
+	 * leased and not yet acknowledged, so that tests sharing the server start
+	 * from an empty queue. Sequences already streamed to push consumers or
+	 * published into the ring are not recalled.
+	 * 
+	 * @return How many action sequences were dropped
+	 */
+	static int clear()
+	{
+		return actionSequence.clear();
+	}
+	
+	/**
+	 * @return How many connections the server has accepted
+	 */
+	public static long connections()
+	{
+		return metrics.connections();
+	}
+	
+	/**
+	 * @return How many requests the server has received over all connections.
+	 *         Compared against {@link Server#connections()}, this shows how
+	 *         often connections are reused.
+	 */
+	public static long requests()
+	{
+		return metrics.requests();
+	}
+	
+	/**
+	 * @return How many action sequences have been dropped, rather than handed
+	 *         out, because their deadline had passed
+	 */
+	public static long expired()
+	{
+		return actionSequence.expired();
+	}
+	
+	/**
+	 * @return How many action sequences have been replaced, before being
+	 *         handed out, by one posted later with the same coalescing key
+	 */
+	public static long coalesced()
+	{
+		return actionSequence.coalesced();
+	}
+	
+	/**
+	 * @return The priority of the action sequences posted, given by the
+	 *         {@code priority} query parameter, 0 by default
+	 */
+	private static int priority(RequestParser in)
+	{
+		return (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, in.queryLong("priority", 0)));
+	}
+	
+	/**
+	 * @return The deadline of the action sequences posted, in milliseconds
+	 *         since the epoch, given either by the {@code deadline} query
+	 *         parameter or as a time to live in milliseconds by the {@code ttl}
+	 *         query parameter, whichever comes first, or 0 if there is none
+	 */
+	private static long deadline(RequestParser in)
+	{
+		return deadline(in.queryLong("deadline", 0), in.queryLong("ttl", -1));
+	}
+	
+	/**
+	 * @param deadline
+	 *            When the action sequences expire, in milliseconds since the
+	 *            epoch, or 0 if they do not
+	 * @param ttl
+	 *            How many milliseconds from now the action sequences expire,
+	 *            or a negative number if they do not
+	 * @return Whichever of the two comes first, in milliseconds since the
+	 *         epoch, or 0 if there is neither
+	 */
+	static long deadline(long deadline, long ttl)
+	{
+		deadline = Math.max(0, deadline);
+		if(ttl < 0)
+			return deadline;
+		long expires = System.currentTimeMillis() + ttl;
+		return deadline == 0 ? expires : Math.min(deadline, expires);
+	}
+	
+	/**
+	 * Creates an action sequence as posted, which coalesces with an identical
+	 * one if {@code coalesce-duplicates} is set and it has no key of its own
+	 */
+	static Action action(String title, String sequence, int priority, long deadline, String key)
+	{
+		return new Action(title, sequence, priority, deadline,
+			key == null && COALESCE_DUPLICATES ? sequence : key);
+	}
+	
+	/**
+	 * Queues posted action sequences, all or none of them, and waits for them
+	 * to be durable before they are acknowledged
+	 * 
+	 * @return Whether the sequences were queued, which they are not if the
+	 *         queue is full
+	 */
+	private static boolean accept(List<Action> batch) throws IOException
+	{
+		boolean queued = batch.size() == 1 ? actionSequence.offer(batch.get(0))
+			: actionSequence.offerAll(batch);
+		if(!queued)
+		{
+			metrics.rejected(batch.size());
+			return false;
+		}
+		// acknowledge only once the sequences would survive a restart
+		if(!batch.isEmpty())
+			actionSequence.commit(batch.get(batch.size() - 1));
+		metrics.accepted(batch.size());
+		return true;
+	}
+	
+	/**
+	 * @return Whether the server is running in this JVM, in which case a
+	 *         {@link Client} in the same JVM hands it action sequences
+	 *         directly rather than over HTTP
+	 */
+	static boolean local()
+	{
+		return socket != null;
+	}
+	
+	/**
+	 * Queues action sequences posted by a {@link Client} in the same JVM,
+	 * exactly as {@code POST /actionsequence/batch} would
+	 * 
+	 * @return Whether the sequences were queued, which they are not if the
+	 *         queue is full
+	 */
+	static boolean post(List<Action> batch) throws IOException
+	{
+		metrics.request();
+		boolean queued = accept(batch);
+		metrics.response(queued ? "200 OK" : "503 Service Unavailable");
+		return queued;
+	}
+	
+	/**
+	 * Takes action sequences for a {@link Client} in the same JVM, exactly as
+	 * {@code GET /actionsequence/batch} would
+	 */
+	static List<Action> poll(int max, long wait) throws InterruptedException
+	{
+		metrics.request();
+		List<Action> batch = actionSequence.drain(Math.max(1, Math.min(BATCH_MAX, max)), wait);
+		for(Action action : batch)
+			metrics.delivered(action);
+		metrics.response("200 OK");
+		return batch;
+	}
+	
+	/**
+	 * Leases an action sequence for a {@link Client} in the same JVM, exactly
+	 * as {@code GET /actionsequence/lease} would
+	 * 
+	 * @return The lease, or {@code null} if no sequence arrived in time
+	 */
+	static ActionQueue.Lease lease(long visibility, long wait) throws InterruptedException
+	{
+		metrics.request();
+		ActionQueue.Lease lease = actionSequence.lease(visibility, wait);
+		if(lease != null)
+			metrics.delivered(lease.sequence);
+		metrics.response("200 OK");
+		return lease;
+	}
+	
+	/**
+	 * Acknowledges a lease for a {@link Client} in the same JVM, exactly as
+	 * {@code POST /actionsequence/ack} would
+	 * 
+	 * @return Whether the lease was still held
+	 */
+	static boolean acknowledge(long lease)
+	{
+		metrics.request();
+		boolean held = actionSequence.acknowledge(lease);
+		metrics.response(held ? "200 OK" : "409 Conflict");
+		return held;
+	}
+	
+	/**
+	 * Decodes a batch of action sequences posted as
+	 * {@code title=sequence&title=sequence...}, where titles may repeat
+	 * 
+	 * @return The action sequences, or {@code null} if any of them is malformed
+	 */
+	private static List<Action> decodeBatch(String body, int priority, long deadline)
+	{
+		var batch = new ArrayList<Action>();
+		if(body.isEmpty())
+			return batch;
+		for(String entry : body.split("&"))
+		{
+			Action action = decodeAction(entry, priority, deadline, null);
+			if(action == null)
+				return null;
+			batch.add(action);
+		}
+		return batch;
+	}
+	
+	/**
+	 * Decodes an action sequence posted as {@code title=sequence}
+	 * 
+	 * @return The action sequence, or {@code null} if it is malformed
+	 */
+	private static Action decodeAction(String entry, int priority, long deadline, String key)
+	{
+		String[] info = entry.split("=", 2);
+		if(info.length != 2 || info[0].isEmpty())
+			return null;
+		try
+		{
+			return action(URLDecoder.decode(info[0], utf8), URLDecoder.decode(info[1], utf8), priority, deadline,
+				key);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Encodes a batch of action sequences the same way they are posted
+	 * 
+	 * @see Server#decodeBatch(String, int, long)
+	 */
+	private static String encodeBatch(List<Action> batch)
+	{
+		var body = new StringBuilder();
+		for(Action action : batch)
+		{
+			if(body.length() != 0)
+				body.append('&');
+			body.append(URLEncoder.encode(action.title, utf8)).append('=')
+				.append(URLEncoder.encode(action.sequence, utf8));
+		}
+		return body.toString();
+	}
+	
+	/**
+	 * Decodes the id of a lease acknowledged as {@code lease=id}
+	 * 
+	 * @return The id, or -1 if there is none, which no lease has
+	 */
+	private static long decodeLease(String body)
+	{
+		for(String param : body.split("&"))
+		{
+			if(!param.startsWith("lease="))
+				continue;
+			try
+			{
+				return Long.parseLong(param.substring(6));
+			}
+			catch(NumberFormatException e)
+			{
+				return -1;
+			}
+		}
+		return -1;
 	}
 	
-	private static String getContentType(String fileRequested)
+	/**
+	 * Encodes queue depths as {@code title=depth} pairs, form-encoded
+	 */
+	private static String encodeDepths(Map<String, Integer> depths)
+	{
+		var body = new StringBuilder();
+		for(Map.Entry<String, Integer> depth : depths.entrySet())
+		{
+			if(body.length() != 0)
+				body.append('&');
+			body.append(URLEncoder.encode(depth.getKey(), utf8)).append('=').append(depth.getValue());
+		}
+		return body.toString();
+	}
+	
+	/**
+	 * Writes the headers common to every response, terminating each line with
+	 * CRLF regardless of platform. The headers are only flushed together with
+	 * the body that follows them, so that each response leaves in one write.
+	 */
+	private static void headers(OutputStream dataOut, String code, String contentType,
+		int length, boolean keepAlive, int served) throws IOException
+	{
+		metrics.response(code);
+		dataOut.write(statusHeaders(code, contentType, length).getBytes(StandardCharsets.ISO_8859_1));
+		connectionHeaders(dataOut, keepAlive, served);
+	}
+	
+	/**
+	 * @return The status line and the headers describing the body, which are
+	 *         the same every time a given response is sent
+	 */
+	static String statusHeaders(String code, String contentType, int length)
+	{
+		var headers = new StringBuilder();
+		headers.append("HTTP/1.1 ").append(code).append("\r\n");
+		headers.append("Server: Java HTTP Server : 1.0\r\n");
+		headers.append("Content-type: ").append(contentType).append("\r\n");
+		headers.append("Content-length: ").append(length).append("\r\n");
+		// tell overloaded producers how long KeySender might need to catch up
+		if(code.startsWith("503"))
+			headers.append("Retry-After: ").append(RETRY_AFTER).append("\r\n");
+		return headers.toString();
+	}
+	
+	/**
+	 * Writes the headers that change from one response to the next, ending the
+	 * headers with a blank line
+	 */
+	static void connectionHeaders(OutputStream dataOut, boolean keepAlive, int served)
+		throws IOException
 	{
-		if(fileRequested.endsWith(".htm") || fileRequested.endsWith(".html"))
-			return "text/html";
+		var headers = new StringBuilder();
+		headers.append("Date: ").append(date()).append("\r\n");
+		if(keepAlive)
+		{
+			headers.append("Connection: keep-alive\r\n");
+			headers.append("Keep-Alive: max=").append(KEEP_ALIVE_MAX - served);
+			if(KEEP_ALIVE_TIMEOUT > 0)
+				headers.append(", timeout=").append(KEEP_ALIVE_TIMEOUT / 1000);
+			headers.append("\r\n");
+		}
 		else
-			return "text/plain";
+			headers.append("Connection: close\r\n");
+		headers.append("X-Connection-Requests: ").append(served).append("\r\n");
+		headers.append("\r\n");
+		dataOut.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	/**
+	 * @return The current time as an HTTP date, formatted at most once a second
+	 */
+	private static String date()
+	{
+		long second = System.currentTimeMillis() / 1000;
+		HttpDate cached = date;
+		if(cached.second != second)
+			date = cached = new HttpDate(second, DateTimeFormatter.RFC_1123_DATE_TIME
+				.format(Instant.ofEpochSecond(second).atOffset(ZoneOffset.UTC)));
+		return cached.text;
 	}
 	
-	private static byte[] readFileData(File file, int fileLength) throws IOException
+	/**
+	 * An HTTP date along with the second it was formatted for
+	 */
+	private static final class HttpDate
 	{
-		byte[] fileData = new byte[fileLength];
-		try (var fileIn = new FileInputStream(file))
+		final long second;
+		final String text;
+		
+		HttpDate(long second, String text)
 		{
-			fileIn.read(fileData);
+			this.second = second;
+			this.text = text;
 		}
-		return fileData;
+	}
+	
+	private static void textResponse(OutputStream dataOut, String output, boolean keepAlive,
+		int served) throws IOException
+	{
+		textResponse(dataOut, "200 OK", "text/plain", output, keepAlive, served);
+	}
+	
+	private static void textResponse(OutputStream dataOut, String code, String contentType,
+		String output, boolean keepAlive, int served) throws IOException
+	{
+		byte[] data = output.getBytes(utf8);
+		headers(dataOut, code, contentType, data.length, keepAlive, served);
+		
+		dataOut.write(data, 0, data.length);
+		dataOut.flush();
 	}
 }
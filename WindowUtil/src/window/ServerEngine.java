@@ -0,0 +1,138 @@
+package window;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The model by which the key {@link Server} serves accepted connections
+ * 
+ * @author ratha
+ */
+public enum ServerEngine
+{
+	/**
+	 * Starts a new platform thread for every accepted connection. Connections
+	 * are processed to completion before the JVM exits.
+	 */
+	THREAD_PER_CONNECTION,
+	/**
+	 * Serves accepted connections on a pool of reusable platform threads, of
+	 * at most {@code max-connections} threads. Connections are processed to
+	 * completion before the JVM exits.
+	 */
+	POOLED,
+	/**
+	 * Serves every accepted connection on its own virtual thread. Virtual
+	 * threads do not keep the JVM alive, so connections still being served
+	 * when it exits are cut off. Virtual threads came with Java 21, and the
+	 * server refuses to start with this engine on earlier runtimes.
+	 * 
+	 * @see ServerEngine#isAvailable()
+	 */
+	VIRTUAL_THREAD;
+	
+	/**
+	 * {@code Executors.newVirtualThreadPerTaskExecutor()}, or null if the
+	 * running JVM has no virtual threads
+	 */
+	private static final Method VIRTUAL_THREAD_PER_TASK = virtualThreadPerTask();
+	
+	/**
+	 * @return Whether this engine can serve connections on the running JVM
+	 */
+	public boolean isAvailable()
+	{
+		return this != VIRTUAL_THREAD || VIRTUAL_THREAD_PER_TASK != null;
+	}
+	
+	/**
+	 * Creates the executor running this engine's connection handlers
+	 * 
+	 * @param maxConnections
+	 *            The most connections that are served at once
+	 * @return An executor which runs each submitted connection handler
+	 * @throws UnsupportedOperationException
+	 *             If this engine is not available on the running JVM
+	 */
+	Executor newExecutor(int maxConnections)
+	{
+		switch(this)
+		{
+		case THREAD_PER_CONNECTION:
+			var factory = new ConnectionThreadFactory();
+			return (task) -> factory.newThread(task).start();
+		case POOLED:
+			// idle threads are let go, so that the pool shrinks once connections close
+			return new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				new ConnectionThreadFactory());
+		case VIRTUAL_THREAD:
+			if(VIRTUAL_THREAD_PER_TASK == null)
+				throw new UnsupportedOperationException(
+					"Virtual threads are not available before Java 21, choose another server engine");
+			try
+			{
+				return (Executor)VIRTUAL_THREAD_PER_TASK.invoke(null);
+			}
+			catch(ReflectiveOperationException e)
+			{
+				throw new IllegalStateException("Could not create a virtual thread executor", e);
+			}
+		default:
+			throw new IllegalStateException(
+				"Server engine provided but not implemented in ServerEngine.newExecutor!");
+		}
+	}
+	
+	private static Method virtualThreadPerTask()
+	{
+		try
+		{
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch(NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Parses an engine from its configuration name, such as
+	 * {@code virtual-thread}
+	 * 
+	 * @param name
+	 *            The configuration name of the engine
+	 * @return The engine with the given name
+	 * @throws IllegalArgumentException
+	 *             If no engine has the given name
+	 */
+	static ServerEngine parse(String name)
+	{
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+	
+	/**
+	 * Names connection threads so that they can be told apart in thread dumps
+	 */
+	private static class ConnectionThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			/*
+			 * Although the acceptor may be a daemon, connections want to be
+			 * processed before exiting the JVM
+			 */
+			var t = new Thread(r, "key-server-connection-" + count.incrementAndGet());
+			t.setDaemon(false);
+			return t;
+		}
+	}
+}
@@ -6,12 +6,15 @@ import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.awt.image.MultiResolutionImage;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.Objects;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
@@ -38,28 +41,20 @@ public class WinUtil
 	 * How many characters to search in any window title
 	 */
 	public static final int TITLE_SEARCH_LENGTH;
-	static final Properties properties = new Properties();
 	private static final User32 U32 = User32.INSTANCE;
 	private static final GDI32 G32 = GDI32.INSTANCE;
 	private static final User32Extra U32X = User32Extra.INSTANCE;
 	private static final GDI32Extra G32X = GDI32Extra.INSTANCE;
+	/**
+	 * Every thread reads titles into a buffer of its own, rather than a new
+	 * buffer for every window
+	 */
+	private static final ThreadLocal<TitleBuffer> TITLE_BUFFER = ThreadLocal.withInitial(TitleBuffer::new);
 	
 	static
 	{
-		try (var fis = new FileInputStream("winUtil.config"))
-		{
-			properties.load(fis);
-			properties.computeIfPresent("title-search-length",
-				(a, b) -> Math.min(1 << 16, Math.max(1,
-					readProperty(cleanComments().andThen(Integer::parseInt), b))));
-		}
-		catch (NumberFormatException | IOException e)
-		{
-			e.printStackTrace();
-			System.err.println(
-				"Library WinUtil Failed to load resources: Check that config settings are correct");
-		}
-		TITLE_SEARCH_LENGTH = (int)properties.getOrDefault("title-search-length", 256);
+		TITLE_SEARCH_LENGTH =
+			Math.min(1 << 16, Math.max(1, Config.readInt("title-search-length", 256)));
 	}
 	
 	/*
@@ -69,23 +64,6 @@ public class WinUtil
 	{
 	}
 	
-	/**
-	 * @return A function which cleans comments from configuration file properties
-	 */
-	static Function<String, String> cleanComments()
-	{
-		return (property) -> property.replaceAll("//.*", "");
-	}
-	
-	/**
-	 * Reads a property of type R from {@code property} using conversion function
-	 * {@code converter}
-	 */
-	static <R> R readProperty(Function<String, R> converter, Object property)
-	{
-		return converter.apply(((String)property));
-	}
-	
 	/**
 	 * Convenience method for getting the ID of the thread that created the given
 	 * window
@@ -355,6 +333,21 @@ public class WinUtil
 	 *         {@link SearchType}, else false
 	 */
 	private static boolean matchesSearch(String title, String query, SearchType search)
+	{
+		return compile(query, search).test(title);
+	}
+	
+	/**
+	 * Compiles a query on window titles, for the search types that are
+	 * supported when searching by query string
+	 * 
+	 * @param query
+	 *            The query string being tested against
+	 * @param search
+	 *            The match verifier
+	 * @return The compiled query
+	 */
+	private static WindowQuery compile(String query, SearchType search)
 	{
 		switch (search)
 		{
@@ -364,7 +357,7 @@ public class WinUtil
 		case EXACT_NO_CASE:
 		case REGEX:
 		case START:
-			return search.test(title, query);
+			return WindowQuery.compile(query, search);
 		default:
 			throw new IllegalStateException(
 				"Search Type provided but not implemented in WinUtil.matchesSearch!");
@@ -381,6 +374,7 @@ public class WinUtil
 	 *            The desired type of output data, generated by {@code op}
 	 * @return All non-null results generated by applying {@code op} to all window
 	 *         handles
+	 * @see WinUtil#windows()
 	 */
 	public static <T> List<T> enumerateWindows(Function<HWND, T> op)
 	{
@@ -397,6 +391,48 @@ public class WinUtil
 		return output;
 	}
 	
+	/**
+	 * Enumerates all windows first, and then computes an operation to generate
+	 * output on several threads at once. Equivalent to
+	 * {@code new WindowMapper(parallelism).map(op)}
+	 * 
+	 * @param op
+	 *            A mapping operation generating desired data of type {@code T} from
+	 *            window handles, which may be run on several threads at once
+	 * @param parallelism
+	 *            How many windows to map at once
+	 * @param <T>
+	 *            The desired type of output data, generated by {@code op}
+	 * @return All non-null results generated by applying {@code op} to all window
+	 *         handles, in the order in which the windows were enumerated
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the windows to be mapped
+	 * @see WindowMapper
+	 */
+	public static <T> List<T> enumerateWindows(Function<HWND, T> op, int parallelism)
+		throws InterruptedException
+	{
+		try (var mapper = new WindowMapper(parallelism))
+		{
+			return mapper.map(op);
+		}
+	}
+	
+	/**
+	 * Streams all windows, from the top of the Z order down. The windows are
+	 * enumerated when the stream is consumed, and no work is done for the
+	 * windows after the one at which a short-circuiting pipeline, such as one
+	 * ending in {@code findFirst} or {@code anyMatch}, stops. The stream may be
+	 * made parallel, which pays off when mapping each window is expensive, such
+	 * as capturing it.
+	 * 
+	 * @return A stream of the handles of all top-level windows
+	 */
+	public static Stream<HWND> windows()
+	{
+		return StreamSupport.stream(new WindowSpliterator(), false);
+	}
+	
 	/**
 	 * Gets the window text associated with the given window. Equivalent to
 	 * {@link WinUtil#getTitle(HWND, int) getTitle(window,
@@ -425,11 +461,65 @@ public class WinUtil
 	 */
 	public static String getTitle(HWND window, int n)
 	{
-		if (window == null || n <= 0)
-			return "";
-		var buffer = new char[n + 1];
-		U32.GetWindowText(window, buffer, n + 1);
-		return new String(buffer).trim();
+		var title = TITLE_BUFFER.get();
+		if (title.inUse)
+			title = new TitleBuffer();
+		title.read(window, n);
+		return title.toString();
+	}
+	
+	/**
+	 * Reads the window text associated with the given window, and hands it to
+	 * an operation without making a string of it. Equivalent to
+	 * {@link WinUtil#withTitle(HWND, int, Function) withTitle(window,
+	 * WinUtil.TITLE_SEARCH_LENGTH, op)}
+	 * 
+	 * @param window
+	 *            A window handle to the given window
+	 * @param op
+	 *            An operation on the title
+	 * @param <T>
+	 *            The type of output of {@code op}
+	 * @return The output of {@code op}
+	 */
+	public static <T> T withTitle(HWND window, Function<? super CharSequence, T> op)
+	{
+		return withTitle(window, TITLE_SEARCH_LENGTH, op);
+	}
+	
+	/**
+	 * Reads the window text associated with the given window into a buffer kept
+	 * by the calling thread, and hands it to an operation without making a
+	 * string of it. The text is trimmed as {@link WinUtil#getTitle(HWND, int)}
+	 * trims it.
+	 * 
+	 * @param window
+	 *            A window handle to the given window
+	 * @param n
+	 *            The maximum number of characters to read
+	 * @param op
+	 *            An operation on the title. The title is a view of the
+	 *            buffer, and must not be used once {@code op} returns.
+	 * @param <T>
+	 *            The type of output of {@code op}
+	 * @return The output of {@code op}
+	 */
+	public static <T> T withTitle(HWND window, int n, Function<? super CharSequence, T> op)
+	{
+		var title = TITLE_BUFFER.get();
+		// op may read titles of its own, which must not overwrite this one
+		if (title.inUse)
+			title = new TitleBuffer();
+		title.read(window, n);
+		title.inUse = true;
+		try
+		{
+			return op.apply(title);
+		}
+		finally
+		{
+			title.inUse = false;
+		}
 	}
 	
 	/**
@@ -443,12 +533,24 @@ public class WinUtil
 	 * @return All windows matched to the query string and type
 	 */
 	public static List<HWND> getWindows(String query, SearchType search)
+	{
+		return getWindows(compile(query, search));
+	}
+	
+	/**
+	 * Find windows matched to a compiled query in the first
+	 * {@code TITLE_SEARCH_LENGTH} characters of their title
+	 * 
+	 * @param query
+	 *            The query on the title strings
+	 * @return All windows matched to the query
+	 */
+	public static List<HWND> getWindows(WindowQuery query)
 	{
 		var handles = new ArrayList<HWND>();
 		U32.EnumWindows((HWND, Pointer) ->
 		{
-			String title = getTitle(HWND, TITLE_SEARCH_LENGTH);
-			if (matchesSearch(title, query, search))
+			if (withTitle(HWND, TITLE_SEARCH_LENGTH, query::test))
 			{
 				handles.add(HWND);
 			}
@@ -457,6 +559,53 @@ public class WinUtil
 		return handles;
 	}
 	
+	/**
+	 * Find the windows matched to each of many queries, in the first
+	 * {@code TITLE_SEARCH_LENGTH} characters of their title. Equivalent to
+	 * {@link WinUtil#getWindows(WindowQuerySet)
+	 * getWindows(WindowQuerySet.compile(queries))}
+	 * 
+	 * @param queries
+	 *            The queries on the title strings
+	 * @return All windows matched to each query, by query
+	 */
+	public static Map<WindowQuery, List<HWND>> getWindows(Collection<WindowQuery> queries)
+	{
+		return getWindows(WindowQuerySet.compile(queries));
+	}
+	
+	/**
+	 * Find the windows matched to each query of a set, in the first
+	 * {@code TITLE_SEARCH_LENGTH} characters of their title. Windows are
+	 * enumerated once, and the title of each is fetched once, however many
+	 * queries there are.
+	 * 
+	 * @param queries
+	 *            The queries on the title strings
+	 * @return All windows matched to each query, by query in the order of the
+	 *         set. Every query of the set is mapped, to an empty list if no
+	 *         window matched it.
+	 */
+	public static Map<WindowQuery, List<HWND>> getWindows(WindowQuerySet queries)
+	{
+		var handles = new ArrayList<List<HWND>>();
+		for (int i = 0; i < queries.queries().size(); ++i)
+			handles.add(new ArrayList<>());
+		U32.EnumWindows((HWND, Pointer) ->
+		{
+			withTitle(HWND, TITLE_SEARCH_LENGTH, (title) ->
+			{
+				queries.match(title, (i) -> handles.get(i).add(HWND));
+				return null;
+			});
+			return true;
+		}, (Pointer)null);
+		var windows = new LinkedHashMap<WindowQuery, List<HWND>>();
+		for (int i = 0; i < handles.size(); ++i)
+			windows.put(queries.queries().get(i), handles.get(i));
+		return windows;
+	}
+	
 	/**
 	 * Find a window with {@code query} in the first {@code TITLE_SEARCH_LENGTH}
 	 * characters of its title
@@ -469,12 +618,26 @@ public class WinUtil
 	 *         there is no such window
 	 */
 	public static HWND getWindow(String query, SearchType search)
+	{
+		return getWindow(compile(query, search));
+	}
+	
+	/**
+	 * Find a window matched to a compiled query in the first
+	 * {@code TITLE_SEARCH_LENGTH} characters of its title
+	 * 
+	 * @param query
+	 *            The query on the title strings
+	 * @return One window matched to the query, or {@code null} if there is no
+	 *         such window
+	 */
+	public static HWND getWindow(WindowQuery query)
 	{
 		var handle = new HWND[1];
+		// stop enumerating at the first match, so that no handle is collected
 		U32.EnumWindows((HWND, Pointer) ->
 		{
-			String title = getTitle(HWND, TITLE_SEARCH_LENGTH);
-			if (matchesSearch(title, query, search))
+			if (withTitle(HWND, TITLE_SEARCH_LENGTH, query::test))
 			{
 				handle[0] = HWND;
 				return false;
@@ -650,4 +813,66 @@ public class WinUtil
 			rect.bottom - rect.top);
 	}
 	
+	/**
+	 * A buffer into which window titles are read, holding the trimmed title
+	 * last read between {@code start} and {@code end}. The buffer is itself a
+	 * view of that title, so that handing a title out does not allocate.
+	 */
+	private static final class TitleBuffer implements CharSequence
+	{
+		char[] chars = new char[TITLE_SEARCH_LENGTH + 1];
+		int start;
+		int end;
+		boolean inUse;
+		
+		/**
+		 * Reads at most {@code n} characters of the title of the given window,
+		 * asking the window how long its title is first, so that windows without
+		 * one are passed over
+		 */
+		void read(HWND window, int n)
+		{
+			start = end = 0;
+			if (window == null || n <= 0)
+				return;
+			int length = Math.min(n, U32.GetWindowTextLength(window));
+			if (length <= 0)
+				return;
+			if (chars.length < length + 1)
+				chars = new char[length + 1];
+			end = Math.max(0, U32.GetWindowText(window, chars, length + 1));
+			while (start < end && chars[start] <= ' ')
+				++start;
+			while (end > start && chars[end - 1] <= ' ')
+				--end;
+		}
+		
+		@Override
+		public int length()
+		{
+			return end - start;
+		}
+		
+		@Override
+		public char charAt(int index)
+		{
+			return chars[start + Objects.checkIndex(index, end - start)];
+		}
+		
+		/**
+		 * @return A copy of part of the title, which outlives the next read
+		 */
+		@Override
+		public CharSequence subSequence(int from, int to)
+		{
+			Objects.checkFromToIndex(from, to, end - start);
+			return new String(chars, start + from, to - from);
+		}
+		
+		@Override
+		public String toString()
+		{
+			return start == end ? "" : new String(chars, start, end - start);
+		}
+	}
 }
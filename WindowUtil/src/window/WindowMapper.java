@@ -0,0 +1,178 @@
+package window;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import com.sun.jna.platform.win32.WinDef.HWND;
+
+/**
+ * Maps every window to data on several threads at once, for operations
+ * expensive enough that running them one window at a time, as
+ * {@link WinUtil#enumerateWindows(Function)} does, takes too long on desktops
+ * with thousands of windows. The handles are enumerated first, and then
+ * mapped by a fixed number of workers, each taking the next window not yet
+ * mapped, so that slow windows hold up only the worker mapping them.
+ * <p>
+ * Workers run in a {@link ForkJoinPool}, or on virtual threads for operations
+ * that mostly wait, such as those sending messages to windows of other
+ * processes. On runtimes without virtual threads, a pool of daemon threads
+ * runs them instead.
+ * 
+ * @author ratha
+ */
+public final class WindowMapper implements AutoCloseable
+{
+	private final int parallelism;
+	private final ExecutorService executor;
+	private final Supplier<? extends Collection<HWND>> windows;
+	
+	/**
+	 * Creates a mapper of every top-level window, with workers in a
+	 * {@link ForkJoinPool}
+	 * 
+	 * @param parallelism
+	 *            How many windows to map at once
+	 */
+	public WindowMapper(int parallelism)
+	{
+		this(parallelism, false);
+	}
+	
+	/**
+	 * Creates a mapper of every top-level window
+	 * 
+	 * @param parallelism
+	 *            How many windows to map at once
+	 * @param virtualThreads
+	 *            Whether the workers run on virtual threads, rather than in a
+	 *            {@link ForkJoinPool}
+	 */
+	public WindowMapper(int parallelism, boolean virtualThreads)
+	{
+		this(parallelism, virtualThreads, () -> WinUtil.windows().collect(Collectors.toList()));
+	}
+	
+	/**
+	 * Creates a mapper of the windows some source enumerates, such as a
+	 * stand-in for the desktop in tests
+	 * 
+	 * @param parallelism
+	 *            How many windows to map at once
+	 * @param virtualThreads
+	 *            Whether the workers run on virtual threads, rather than in a
+	 *            {@link ForkJoinPool}
+	 * @param windows
+	 *            Enumerates the windows to map, in order, each time windows are
+	 *            mapped
+	 */
+	public WindowMapper(int parallelism, boolean virtualThreads, Supplier<? extends Collection<HWND>> windows)
+	{
+		this.parallelism = Math.max(1, parallelism);
+		this.executor = virtualThreads ? newVirtualExecutor(this.parallelism) : new ForkJoinPool(this.parallelism);
+		this.windows = Objects.requireNonNull(windows);
+	}
+	
+	private static ExecutorService newVirtualExecutor(int parallelism)
+	{
+		try
+		{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newFixedThreadPool(parallelism, (task) ->
+			{
+				var t = new Thread(task, "window-mapper");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+	
+	/**
+	 * Enumerates the windows, and maps each of them
+	 * 
+	 * @param op
+	 *            A mapping operation generating desired data of type {@code T} from
+	 *            window handles, which may be run on several threads at once
+	 * @param <T>
+	 *            The desired type of output data, generated by {@code op}
+	 * @return All non-null results generated by applying {@code op} to all window
+	 *         handles, in the order in which the windows were enumerated
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the windows to be mapped
+	 * @throws RuntimeException
+	 *             What {@code op} threw, if it threw, after which no more windows
+	 *             are mapped
+	 */
+	@SuppressWarnings("unchecked") // results holds only what op returned
+	public <T> List<T> map(Function<HWND, T> op) throws InterruptedException
+	{
+		Objects.requireNonNull(op);
+		HWND[] handles = windows.get().toArray(new HWND[0]);
+		var results = new Object[handles.length];
+		var next = new AtomicInteger();
+		var workers = new ArrayList<Callable<Void>>();
+		for (int w = Math.min(parallelism, handles.length); w > 0; --w)
+		{
+			workers.add(() ->
+			{
+				for (int i; (i = next.getAndIncrement()) < handles.length;)
+				{
+					try
+					{
+						results[i] = op.apply(handles[i]);
+					}
+					catch (RuntimeException | Error e)
+					{
+						// the other workers stop at their next window
+						next.set(handles.length);
+						throw e;
+					}
+				}
+				return null;
+			});
+		}
+		for (Future<Void> worker : executor.invokeAll(workers))
+		{
+			try
+			{
+				worker.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof Error)
+					throw (Error)e.getCause();
+				throw (RuntimeException)e.getCause();
+			}
+		}
+		var output = new ArrayList<T>(results.length);
+		for (Object result : results)
+			if (result != null)
+				output.add((T)result);
+		return output;
+	}
+	
+	/**
+	 * Stops the workers. Windows may no longer be mapped.
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,241 @@
+package window;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A query on window titles, compiled once from a query string and a
+ * {@link SearchType} so that it may be tested against many titles cheaply. A
+ * regular expression is compiled into a {@link Pattern} only once, and a
+ * query for a title ignoring case is folded only once, rather than for every
+ * title tested. A query searched for within titles has its failure table
+ * computed only once, so that it is found in one pass over a title that is
+ * not a string.
+ * <p>
+ * Titles are matched as character sequences, so that a title read into a
+ * buffer, as {@code WinUtil.withTitle} hands it out, need not be made into a
+ * string first.
+ * <p>
+ * Queries are immutable, and may be shared between threads.
+ * 
+ * @author ratha
+ */
+public final class WindowQuery implements Predicate<CharSequence>
+{
+	private final String query;
+	private final SearchType search;
+	private final Predicate<CharSequence> test;
+	
+	private WindowQuery(String query, SearchType search, Predicate<CharSequence> test)
+	{
+		this.query = query;
+		this.search = search;
+		this.test = test;
+	}
+	
+	/**
+	 * Compiles a query
+	 * 
+	 * @param query
+	 *            The query string to be searched for
+	 * @param search
+	 *            The query type on the title strings
+	 * @return A query matching exactly the titles that
+	 *         {@code search.test(title, query)} would
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             If {@code search} is {@link SearchType#REGEX} and
+	 *             {@code query} is not a regular expression
+	 * @throws NullPointerException
+	 *             If {@code search} is null
+	 */
+	public static WindowQuery compile(String query, SearchType search)
+	{
+		switch (search)
+		{
+		case ALL:
+			return new WindowQuery(query, search, (title) -> true);
+		case NONE:
+			return new WindowQuery(query, search, (title) -> false);
+		default:
+			break;
+		}
+		// searches other than all and none match nothing if the query is null
+		if (query == null)
+			return new WindowQuery(query, search, (title) -> false);
+		Predicate<CharSequence> test;
+		switch (search)
+		{
+		case CONTAINS:
+			test = new Contains(query);
+			break;
+		case END:
+			test = (title) -> regionMatches(title, title.length() - query.length(), query);
+			break;
+		case EXACT:
+			test = query::contentEquals;
+			break;
+		case EXACT_NO_CASE:
+			test = new FoldedEquals(query);
+			break;
+		case REGEX:
+			var pattern = Pattern.compile(query);
+			test = (title) -> pattern.matcher(title).matches();
+			break;
+		case START:
+			test = (title) -> regionMatches(title, 0, query);
+			break;
+		default:
+			throw new IllegalStateException("Search Type provided but not implemented in WindowQuery!");
+		}
+		return new WindowQuery(query, search, (title) -> title != null && test.test(title));
+	}
+	
+	/**
+	 * @return true if {@code title} satisfies the query, else false
+	 */
+	@Override
+	public boolean test(CharSequence title)
+	{
+		return test.test(title);
+	}
+	
+	/**
+	 * @return Whether {@code query} is found in {@code title} at {@code offset}
+	 */
+	private static boolean regionMatches(CharSequence title, int offset, String query)
+	{
+		if (title instanceof String)
+			return ((String)title).startsWith(query, offset);
+		if (offset < 0 || offset > title.length() - query.length())
+			return false;
+		for (int i = 0; i < query.length(); ++i)
+			if (title.charAt(offset + i) != query.charAt(i))
+				return false;
+		return true;
+	}
+	
+	public String query()
+	{
+		return query;
+	}
+	
+	public SearchType search()
+	{
+		return search;
+	}
+	
+	/**
+	 * @return Whether {@code o} is a query for the same string by the same
+	 *         search type
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof WindowQuery))
+			return false;
+		var other = (WindowQuery)o;
+		return search == other.search && Objects.equals(query, other.query);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(query, search);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return search + " " + query;
+	}
+	
+	/**
+	 * Searches titles for a query, by {@link String#contains(CharSequence)} for
+	 * strings, and otherwise by Knuth-Morris-Pratt, with the query's failure
+	 * table computed in advance: on a mismatch after {@code j} matching
+	 * characters, the search goes on from the longest proper prefix of the
+	 * query that is also a suffix of those {@code j} characters, so that no
+	 * character of the title is read twice
+	 */
+	private static final class Contains implements Predicate<CharSequence>
+	{
+		private final String query;
+		/**
+		 * The length of the longest proper prefix of {@code query} which ends
+		 * at each of its characters
+		 */
+		private final int[] failure;
+		
+		Contains(String query)
+		{
+			this.query = query;
+			this.failure = new int[query.length()];
+			for (int i = 1, k = 0; i < failure.length; ++i)
+			{
+				while (k > 0 && query.charAt(i) != query.charAt(k))
+					k = failure[k - 1];
+				if (query.charAt(i) == query.charAt(k))
+					++k;
+				failure[i] = k;
+			}
+		}
+		
+		@Override
+		public boolean test(CharSequence title)
+		{
+			if (title instanceof String)
+				return ((String)title).contains(query);
+			if (failure.length == 0)
+				return true;
+			for (int i = 0, j = 0, n = title.length(); i < n; ++i)
+			{
+				char c = title.charAt(i);
+				while (j > 0 && c != query.charAt(j))
+					j = failure[j - 1];
+				if (c == query.charAt(j) && ++j == failure.length)
+					return true;
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Compares titles to a query ignoring case, as
+	 * {@link String#equalsIgnoreCase(String)} does, with the query's characters
+	 * folded in advance: two characters are equal ignoring case exactly when
+	 * their lower case of upper case is
+	 */
+	private static final class FoldedEquals implements Predicate<CharSequence>
+	{
+		private final String query;
+		private final char[] folded;
+		
+		FoldedEquals(String query)
+		{
+			this.query = query;
+			this.folded = new char[query.length()];
+			for (int i = 0; i < folded.length; ++i)
+				folded[i] = fold(query.charAt(i));
+		}
+		
+		@Override
+		public boolean test(CharSequence title)
+		{
+			if (title.length() != folded.length)
+				return false;
+			for (int i = 0; i < folded.length; ++i)
+			{
+				char c = title.charAt(i);
+				if (c != query.charAt(i) && fold(c) != folded[i])
+					return false;
+			}
+			return true;
+		}
+		
+		private static char fold(char c)
+		{
+			return Character.toLowerCase(Character.toUpperCase(c));
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package window;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Many queries on window titles, compiled together so that each title is
+ * tested against all of them in a single pass. The query strings of every
+ * {@link SearchType#CONTAINS}, {@link SearchType#START} and
+ * {@link SearchType#END} query are found together by an Aho-Corasick
+ * automaton, which reads each title once however many queries there are.
+ * {@link SearchType#EXACT} queries are looked up by title, and the rest are
+ * tested one by one. Titles are matched as character sequences, as
+ * {@link WindowQuery} matches them.
+ * <p>
+ * Sets are immutable, and may be shared between threads.
+ * 
+ * @author ratha
+ * @see WinUtil#getWindows(WindowQuerySet)
+ */
+public final class WindowQuerySet
+{
+	/**
+	 * Which needles each thread has found in the title it is matching
+	 */
+	private static final ThreadLocal<Found> FOUND = ThreadLocal.withInitial(Found::new);
+	private final List<WindowQuery> queries;
+	/**
+	 * The indices of the queries tested one by one
+	 */
+	private final int[] others;
+	/**
+	 * The query strings of the exact queries, sorted by their hash code, which
+	 * is looked up by binary search so that titles need not be made into
+	 * strings, and the indices of the queries for each of them
+	 */
+	private final int[] exactHashes;
+	private final String[] exactTitles;
+	private final int[][] exactQueries;
+	/**
+	 * The indices of the queries searching for each string the automaton finds
+	 */
+	private final int[][] needleQueries;
+	private final int[] needleLengths;
+	/**
+	 * The automaton's alphabet: the index of every character any needle has,
+	 * from 1 up, with 0 for every other character. ASCII characters are looked
+	 * up directly, and the rest by binary search.
+	 */
+	private final int[] ascii = new int[128];
+	private final char[] wide;
+	private final int[] wideIndex;
+	private final int symbols;
+	/**
+	 * The state the automaton moves to from each state on each symbol
+	 */
+	private final int[] transitions;
+	/**
+	 * The needles ending at each state, including through its suffixes
+	 */
+	private final int[][] outputs;
+	
+	private WindowQuerySet(List<WindowQuery> queries)
+	{
+		this.queries = queries;
+		var others = new ArrayList<Integer>();
+		var needles = new LinkedHashMap<String, List<Integer>>();
+		var exact = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < queries.size(); ++i)
+		{
+			WindowQuery query = queries.get(i);
+			String needle = query.query();
+			switch (query.search())
+			{
+			case CONTAINS:
+			case START:
+			case END:
+				if (needle != null && !needle.isEmpty())
+				{
+					needles.computeIfAbsent(needle, (n) -> new ArrayList<>()).add(i);
+					continue;
+				}
+				break;
+			case EXACT:
+				if (needle != null)
+				{
+					exact.computeIfAbsent(needle, (n) -> new ArrayList<>()).add(i);
+					continue;
+				}
+				break;
+			default:
+				break;
+			}
+			others.add(i);
+		}
+		this.others = others.stream().mapToInt(Integer::intValue).toArray();
+		exactTitles = exact.keySet().toArray(new String[0]);
+		Arrays.sort(exactTitles, Comparator.comparingInt(String::hashCode));
+		exactHashes = new int[exactTitles.length];
+		exactQueries = new int[exactTitles.length][];
+		for (int i = 0; i < exactTitles.length; ++i)
+		{
+			exactHashes[i] = exactTitles[i].hashCode();
+			exactQueries[i] = exact.get(exactTitles[i]).stream().mapToInt(Integer::intValue).toArray();
+		}
+		needleQueries = new int[needles.size()][];
+		needleLengths = new int[needles.size()];
+		int n = 0;
+		var alphabet = new TreeMap<Character, Integer>();
+		for (var needle : needles.entrySet())
+		{
+			needleQueries[n] = needle.getValue().stream().mapToInt(Integer::intValue).toArray();
+			needleLengths[n++] = needle.getKey().length();
+			for (char c : needle.getKey().toCharArray())
+				alphabet.putIfAbsent(c, 0);
+		}
+		int symbol = 0;
+		var wide = new ArrayList<Character>();
+		for (var c : alphabet.keySet())
+		{
+			alphabet.put(c, ++symbol);
+			if (c < ascii.length)
+				ascii[c] = symbol;
+			else
+				wide.add(c);
+		}
+		this.symbols = symbol + 1;
+		this.wide = new char[wide.size()];
+		this.wideIndex = new int[wide.size()];
+		for (int i = 0; i < wide.size(); ++i)
+		{
+			this.wide[i] = wide.get(i);
+			this.wideIndex[i] = alphabet.get(wide.get(i));
+		}
+		// the trie of every needle, state 0 being the root
+		var trie = new ArrayList<int[]>();
+		var ends = new ArrayList<List<Integer>>();
+		trie.add(new int[symbols]);
+		ends.add(new ArrayList<>());
+		n = 0;
+		for (String needle : needles.keySet())
+		{
+			int state = 0;
+			for (char c : needle.toCharArray())
+			{
+				int s = symbol(c);
+				if (trie.get(state)[s] == 0)
+				{
+					trie.get(state)[s] = trie.size();
+					trie.add(new int[symbols]);
+					ends.add(new ArrayList<>());
+				}
+				state = trie.get(state)[s];
+			}
+			ends.get(state).add(n++);
+		}
+		// resolve failures breadth first, so that every state's transitions are complete
+		transitions = new int[trie.size() * symbols];
+		outputs = new int[trie.size()][];
+		var fail = new int[trie.size()];
+		var queue = new ArrayDeque<Integer>();
+		outputs[0] = new int[0];
+		for (int s = 1; s < symbols; ++s)
+		{
+			int next = trie.get(0)[s];
+			transitions[s] = next;
+			if (next != 0)
+				queue.add(next);
+		}
+		while (!queue.isEmpty())
+		{
+			int state = queue.poll();
+			var out = new ArrayList<>(ends.get(state));
+			for (int needle : outputs[fail[state]])
+				out.add(needle);
+			outputs[state] = out.stream().mapToInt(Integer::intValue).toArray();
+			for (int s = 1; s < symbols; ++s)
+			{
+				int next = trie.get(state)[s];
+				int fallback = transitions[fail[state] * symbols + s];
+				if (next == 0)
+				{
+					transitions[state * symbols + s] = fallback;
+					continue;
+				}
+				fail[next] = fallback;
+				transitions[state * symbols + s] = next;
+				queue.add(next);
+			}
+		}
+	}
+	
+	/**
+	 * Compiles many queries together. A query given more than once is kept
+	 * once.
+	 * 
+	 * @param queries
+	 *            The queries, in the order in which they are reported
+	 * @return The set of queries
+	 * @throws NullPointerException
+	 *             If any query is null
+	 */
+	public static WindowQuerySet compile(Collection<WindowQuery> queries)
+	{
+		for (var query : queries)
+			if (query == null)
+				throw new NullPointerException("Null window query");
+		return new WindowQuerySet(List.copyOf(new LinkedHashSet<>(queries)));
+	}
+	
+	/**
+	 * @return The queries of this set, in the order in which they were given
+	 */
+	public List<WindowQuery> queries()
+	{
+		return queries;
+	}
+	
+	/**
+	 * @return Every query of this set that {@code title} satisfies, in the order
+	 *         in which they were given
+	 */
+	public List<WindowQuery> matching(CharSequence title)
+	{
+		var matched = new boolean[queries.size()];
+		match(title, (i) -> matched[i] = true);
+		var matching = new ArrayList<WindowQuery>();
+		for (int i = 0; i < matched.length; ++i)
+			if (matched[i])
+				matching.add(queries.get(i));
+		return Collections.unmodifiableList(matching);
+	}
+	
+	/**
+	 * Tests a title against every query of this set in one pass. Intentionally
+	 * package protected.
+	 * 
+	 * @param matched
+	 *            Is given the index of every query the title satisfies, once
+	 *            each, in no particular order
+	 */
+	void match(CharSequence title, IntConsumer matched)
+	{
+		for (int i : others)
+			if (queries.get(i).test(title))
+				matched.accept(i);
+		if (title == null)
+			return;
+		int[] exactly = exact(title);
+		if (exactly != null)
+			for (int i : exactly)
+				matched.accept(i);
+		if (needleQueries.length == 0)
+			return;
+		// a needle may be found more than once, but its queries match once
+		var found = FOUND.get();
+		// matched may match titles of its own, which must not clear this one's
+		if (found.inUse)
+			found = new Found();
+		found.clear(needleQueries.length);
+		found.inUse = true;
+		try
+		{
+			search(title, found, matched);
+		}
+		finally
+		{
+			found.inUse = false;
+		}
+	}
+	
+	/**
+	 * Runs the automaton over a title, giving {@code matched} the index of
+	 * every contains, start or end query the title satisfies
+	 */
+	private void search(CharSequence title, Found found, IntConsumer matched)
+	{
+		int state = 0;
+		for (int at = 0; at < title.length(); ++at)
+		{
+			state = transitions[state * symbols + symbol(title.charAt(at))];
+			for (int needle : outputs[state])
+			{
+				boolean first = found.add(needle);
+				boolean start = at + 1 == needleLengths[needle];
+				boolean end = at + 1 == title.length();
+				if (!first && !start && !end)
+					continue;
+				for (int i : needleQueries[needle])
+				{
+					switch (queries.get(i).search())
+					{
+					case CONTAINS:
+						if (first)
+							matched.accept(i);
+						break;
+					case START:
+						if (start)
+							matched.accept(i);
+						break;
+					case END:
+						if (end)
+							matched.accept(i);
+						break;
+					default:
+						throw new IllegalStateException("Search Type provided but not implemented in WindowQuerySet!");
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return The indices of the exact queries for the given title, or
+	 *         {@code null} if there are none
+	 */
+	private int[] exact(CharSequence title)
+	{
+		if (exactHashes.length == 0)
+			return null;
+		int hash = hash(title);
+		int i = Arrays.binarySearch(exactHashes, hash);
+		if (i < 0)
+			return null;
+		while (i > 0 && exactHashes[i - 1] == hash)
+			--i;
+		for (; i < exactHashes.length && exactHashes[i] == hash; ++i)
+			if (exactTitles[i].contentEquals(title))
+				return exactQueries[i];
+		return null;
+	}
+	
+	/**
+	 * @return The hash code a string of the title would have
+	 */
+	private static int hash(CharSequence title)
+	{
+		if (title instanceof String)
+			return title.hashCode();
+		int hash = 0;
+		for (int i = 0; i < title.length(); ++i)
+			hash = 31 * hash + title.charAt(i);
+		return hash;
+	}
+	
+	/**
+	 * @return The automaton's symbol for a character, or 0 if no needle has it
+	 */
+	private int symbol(char c)
+	{
+		if (c < ascii.length)
+			return ascii[c];
+		int i = Arrays.binarySearch(wide, c);
+		return i < 0 ? 0 : wideIndex[i];
+	}
+	
+	/**
+	 * The needles found in one title, kept between titles so that matching a
+	 * title does not allocate. A needle is found when its stamp is the current
+	 * generation, so that clearing the set for the next title is a single
+	 * increment.
+	 */
+	private static final class Found
+	{
+		int[] stamps = new int[0];
+		int generation;
+		boolean inUse;
+		
+		/**
+		 * Empties the set, making room for needles below {@code needles}
+		 */
+		void clear(int needles)
+		{
+			if (stamps.length < needles)
+			{
+				stamps = new int[needles];
+				generation = 0;
+			}
+			if (++generation == 0)
+			{
+				// stamps left from 2^32 titles ago must not look current
+				Arrays.fill(stamps, 0);
+				generation = 1;
+			}
+		}
+		
+		/**
+		 * @return Whether the needle was not found before
+		 */
+		boolean add(int needle)
+		{
+			if (stamps[needle] == generation)
+				return false;
+			stamps[needle] = generation;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package window;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import com.sun.jna.platform.win32.User32;
+import com.sun.jna.platform.win32.WinDef.HWND;
+import com.sun.jna.platform.win32.WinUser.WNDENUMPROC;
+
+/**
+ * Traverses the top-level windows, from the top of the Z order down.
+ * Intentionally package protected.
+ * <p>
+ * The handles are enumerated as the spliterator is traversed, rather than when
+ * it is created. Traversing the rest of the windows at once hands each window
+ * on from within the {@code EnumWindows} callback. Advancing one window at a
+ * time hands windows over from a short buffer, which an enumeration fills and
+ * then stops; each refill resumes after the last window enumerated and takes
+ * twice as many windows as the one before. A pipeline that stops early thus
+ * enumerates few more windows than it reaches, while one that advances through
+ * every window enumerates each about twice.
+ * <p>
+ * Windows opened, closed or reordered while the spliterator is traversed may
+ * or may not be seen. If the last window enumerated has closed by the next
+ * refill, enumeration resumes at its position instead, which may hand out a
+ * window twice.
+ * 
+ * @author ratha
+ */
+final class WindowSpliterator extends Spliterators.AbstractSpliterator<HWND>
+{
+	private final Predicate<WNDENUMPROC> enumWindows;
+	private final ArrayDeque<HWND> buffer = new ArrayDeque<>();
+	/**
+	 * How many windows the next refill of the buffer takes
+	 */
+	private int batch = 1;
+	/**
+	 * The last window enumerated, after which enumeration resumes
+	 */
+	private HWND last;
+	/**
+	 * How many windows have been enumerated
+	 */
+	private int enumerated;
+	private boolean exhausted;
+	
+	WindowSpliterator()
+	{
+		this((callback) -> User32.INSTANCE.EnumWindows(callback, null));
+	}
+	
+	/**
+	 * @param enumWindows
+	 *            Calls the given callback for every top-level window, from the
+	 *            top of the Z order down, until it returns false
+	 */
+	WindowSpliterator(Predicate<WNDENUMPROC> enumWindows)
+	{
+		super(Long.MAX_VALUE, ORDERED | NONNULL);
+		this.enumWindows = enumWindows;
+	}
+	
+	@Override
+	public boolean tryAdvance(Consumer<? super HWND> action)
+	{
+		if (buffer.isEmpty() && !exhausted)
+		{
+			int size = batch;
+			batch <<= 1;
+			enumerate((window) ->
+			{
+				buffer.add(window);
+				return buffer.size() < size;
+			});
+		}
+		HWND window = buffer.poll();
+		if (window == null)
+			return false;
+		action.accept(window);
+		return true;
+	}
+	
+	@Override
+	public void forEachRemaining(Consumer<? super HWND> action)
+	{
+		for (HWND window; (window = buffer.poll()) != null;)
+			action.accept(window);
+		if (!exhausted)
+			enumerate((window) ->
+			{
+				action.accept(window);
+				return true;
+			});
+	}
+	
+	/**
+	 * Enumerates the windows after the last one enumerated, handing each to
+	 * the sink from within the callback until the sink returns false. Anything
+	 * the sink throws stops the enumeration and is rethrown.
+	 * 
+	 * @param sink
+	 *            Takes each window, returning whether to go on
+	 */
+	private void enumerate(Predicate<HWND> sink)
+	{
+		int from = enumerated;
+		var skipped = new int[1];
+		var resumed = new boolean[] { last == null };
+		var stopped = new boolean[1];
+		var failure = new Throwable[1];
+		// in case the last window has closed, those from its position on stand in
+		var fallback = new ArrayList<HWND>();
+		enumWindows.test((window, data) ->
+		{
+			if (!resumed[0])
+			{
+				if (window.equals(last))
+				{
+					resumed[0] = true;
+					fallback.clear();
+				}
+				else if (++skipped[0] >= from)
+					fallback.add(window);
+				return true;
+			}
+			try
+			{
+				if (take(window, sink))
+					return true;
+				stopped[0] = true;
+				return false;
+			}
+			catch (RuntimeException | Error e)
+			{
+				failure[0] = e;
+				return false;
+			}
+		});
+		if (failure[0] instanceof RuntimeException)
+			throw (RuntimeException)failure[0];
+		if (failure[0] != null)
+			throw (Error)failure[0];
+		if (!resumed[0])
+			for (HWND window : fallback)
+				if (!take(window, sink))
+				{
+					stopped[0] = true;
+					break;
+				}
+		exhausted = !stopped[0];
+	}
+	
+	private boolean take(HWND window, Predicate<HWND> sink)
+	{
+		last = window;
+		++enumerated;
+		return sink.test(window);
+	}
+}
@@ -0,0 +1,202 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A pure Java stand-in for KeySender, which polls the key server for action
+ * sequences the same way KeySender does, but only counts what it receives
+ * instead of sending keys. Lets the key server be exercised on any platform.
+ * 
+ * @author ratha
+ */
+class KeySenderStandIn implements Runnable
+{
+	private final int port;
+	private final boolean keepAlive;
+	private final long wait;
+	private final Consumer<String> sink;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong polls = new AtomicLong();
+	private volatile boolean running = true;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	
+	/**
+	 * @param port
+	 *            The port of localhost on which the key server listens
+	 * @param keepAlive
+	 *            Whether to reuse one connection for every poll, rather than
+	 *            connecting anew each time
+	 * @param wait
+	 *            How many milliseconds each poll may park on the server waiting
+	 *            for a sequence, or 0 to busy poll
+	 */
+	KeySenderStandIn(int port, boolean keepAlive, long wait)
+	{
+		this(port, keepAlive, wait, (sequence) ->
+		{
+		});
+	}
+	
+	/**
+	 * @param sink
+	 *            Is handed every sequence received, on the polling thread
+	 * @see KeySenderStandIn#KeySenderStandIn(int, boolean, long)
+	 */
+	KeySenderStandIn(int port, boolean keepAlive, long wait, Consumer<String> sink)
+	{
+		this.port = port;
+		this.keepAlive = keepAlive;
+		this.wait = wait;
+		this.sink = sink;
+	}
+	
+	@Override
+	public void run()
+	{
+		while(running)
+		{
+			try
+			{
+				String sequence = poll();
+				polls.incrementAndGet();
+				if(!sequence.isEmpty())
+				{
+					sink.accept(sequence);
+					received.incrementAndGet();
+				}
+			}
+			catch(IOException e)
+			{
+				if(running)
+					System.err.println("Stand-in poll failed: " + e.getMessage());
+				close();
+			}
+		}
+		close();
+	}
+	
+	/**
+	 * Issues one {@code GET /actionsequence}, as KeySender would
+	 * 
+	 * @return The body of the response, which is empty if nothing was queued
+	 */
+	String poll() throws IOException
+	{
+		if(socket == null)
+		{
+			socket = new Socket("localhost", port);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+		out.write(("GET /actionsequence?wait=" + wait + " HTTP/1.1\r\nHost: localhost:" + port + "\r\nConnection: "
+			+ (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		Response r = Response.read(in);
+		if(!keepAlive || !r.keepAlive)
+			close();
+		return r.body;
+	}
+	
+	private void close()
+	{
+		try
+		{
+			if(socket != null)
+				socket.close();
+		}
+		catch(IOException e)
+		{
+			// nothing left to clean up
+		}
+		socket = null;
+	}
+	
+	long received()
+	{
+		return received.get();
+	}
+	
+	long polls()
+	{
+		return polls.get();
+	}
+	
+	void stop()
+	{
+		running = false;
+	}
+	
+	/**
+	 * A response read off a connection, framed by its {@code Content-length}
+	 */
+	static class Response
+	{
+		final String status;
+		final String headers;
+		final String body;
+		final boolean keepAlive;
+		
+		private Response(String status, String headers, String body, boolean keepAlive)
+		{
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+			this.keepAlive = keepAlive;
+		}
+		
+		/**
+		 * Reads exactly one response, leaving any pipelined responses after it
+		 * unread
+		 */
+		static Response read(InputStream in) throws IOException
+		{
+			String status = line(in);
+			var headers = new StringBuilder();
+			int length = 0;
+			boolean keepAlive = true;
+			String header;
+			while(!( header = line(in) ).isEmpty())
+			{
+				headers.append(header).append('\n');
+				String[] mapping = header.split(":", 2);
+				if(mapping[0].trim().equalsIgnoreCase("Content-length"))
+					length = Integer.parseInt(mapping[1].trim());
+				else if(mapping[0].trim().equalsIgnoreCase("Connection"))
+					keepAlive = !mapping[1].trim().equalsIgnoreCase("close");
+			}
+			byte[] body = in.readNBytes(length);
+			if(body.length < length)
+				throw new EOFException("Response body ended early");
+			return new Response(status, headers.toString(), new String(body, StandardCharsets.UTF_8),
+				keepAlive);
+		}
+		
+		/**
+		 * Reads one line, which may be terminated by CRLF or a bare line feed
+		 */
+		private static String line(InputStream in) throws IOException
+		{
+			var line = new ByteArrayOutputStream();
+			int b;
+			while(( b = in.read() ) != '\n')
+			{
+				if(b < 0)
+					throw new EOFException("Connection closed by server");
+				if(b != '\r')
+					line.write(b);
+			}
+			return line.toString(StandardCharsets.US_ASCII);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import window.Client;
+import window.Server;
+import window.ServerEngine;
+
+/**
+ * Drives the whole action pipeline under load without KeySender: producers
+ * post action sequences of a given size through {@link Client} for a fixed
+ * time, while {@link KeySenderStandIn}s poll them back out the way KeySender
+ * does. Every sequence carries the time it was posted, so that the time from
+ * enqueue to consumption is measured for each one.
+ * <p>
+ * Producers post as fast as the server lets them unless given a rate, in
+ * which case the latencies include the time from when each sequence was due
+ * to be posted, so that a stalled producer does not hide a stall.
+ * <p>
+ * Each run reports throughput, the 50th, 99th and 99.9th percentile
+ * latencies, and the rate at which the JVM's threads allocated, producers and
+ * consumers included. A first run warms up and is not reported, every run starts after
+ * a garbage collection, and the spread of throughput across runs is reported
+ * at the end, so that results can be compared from one build to the next.
+ * Run from the project directory so that {@code winUtil.config} is found.
+ * 
+ * <pre>
+ * java test.LoadTest [producers] [consumers] [payload bytes] [actions/s, 0 for no limit] [seconds] [runs] [engine]
+ * </pre>
+ * 
+ * @author ratha
+ */
+class LoadTest
+{
+	public static void main(String[] args) throws Exception
+	{
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		int payload = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		int runs = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+		var engine = args.length > 6 ? ServerEngine.valueOf(args[6])
+			: ServerEngine.VIRTUAL_THREAD.isAvailable() ? ServerEngine.VIRTUAL_THREAD : ServerEngine.POOLED;
+		// post over HTTP, as producers in other processes would
+		Client.setInProcess(false);
+		if(!Server.serve(true, engine))
+			throw new IllegalStateException("Could not start the key server");
+		System.out.printf("%d producers, %d consumers, %d byte sequences, %s, %d s per run, %s%n",
+			producers, consumers, payload, rate > 0 ? rate + " actions/s" : "no rate limit", seconds, engine);
+		var throughputs = new double[runs];
+		for(int run = 0; run <= runs; ++run)
+		{
+			System.gc();
+			Result r = run(producers, consumers, payload, rate, run == 0 ? Math.max(1, seconds / 2) : seconds);
+			if(run == 0)
+				continue;
+			throughputs[run - 1] = r.actions * 1e9 / r.nanos;
+			System.out.printf(
+				"run %2d: %9d actions: %9.0f actions/s, latency p50 %8.3f ms, p99 %8.3f ms, p999 %8.3f ms, max %8.3f ms, %8.1f MB/s allocated, %7.0f bytes/action%n",
+				run, r.actions, throughputs[run - 1], r.latency.percentile(0.5) / 1e6,
+				r.latency.percentile(0.99) / 1e6, r.latency.percentile(0.999) / 1e6,
+				r.latency.percentile(1) / 1e6, r.allocated * 1e3 / r.nanos, (double)r.allocated / r.actions);
+		}
+		Arrays.sort(throughputs);
+		double median = throughputs[runs / 2];
+		System.out.printf("median %.0f actions/s, runs within %+.1f%% / %+.1f%% of it%n", median,
+			( throughputs[0] / median - 1 ) * 100, ( throughputs[runs - 1] / median - 1 ) * 100);
+		Server.shutdown();
+	}
+	
+	/**
+	 * Produces for the given time, then waits for the consumers to take
+	 * everything produced
+	 */
+	static Result run(int producers, int consumers, int payload, double rate, int seconds) throws Exception
+	{
+		var latency = new Histogram();
+		var standIns = new ArrayList<KeySenderStandIn>();
+		var consumerThreads = new ArrayList<Thread>();
+		for(int c = 0; c < consumers; ++c)
+		{
+			var standIn = new KeySenderStandIn(Server.port(), true, 1000, (sequence) ->
+			{
+				// title=time_padding, none of which is encoded
+				int start = sequence.indexOf('=') + 1;
+				long posted = Long.parseLong(sequence, start, sequence.indexOf('_', start), 10);
+				latency.record(System.nanoTime() - posted);
+			});
+			standIns.add(standIn);
+			consumerThreads.add(new Thread(standIn, "load-consumer-" + c));
+		}
+		var sent = new AtomicLong();
+		// producers are gone by the end of the run, so they count for themselves
+		var produced = new AtomicLong();
+		var stop = new AtomicBoolean();
+		String padding = "x".repeat(payload);
+		long interval = rate > 0 ? (long)( producers * 1e9 / rate ) : 0;
+		var producerThreads = new ArrayList<Thread>();
+		for(int p = 0; p < producers; ++p)
+		{
+			String title = "Load window " + p;
+			producerThreads.add(new Thread(() ->
+			{
+				try
+				{
+					long before = threads().getCurrentThreadAllocatedBytes();
+					for(long due = System.nanoTime(); !stop.get(); due += interval)
+					{
+						long now = System.nanoTime();
+						if(interval == 0)
+							due = now;
+						else if(due > now)
+							LockSupport.parkNanos(due - now);
+						Client.postSequence(title, due + "_" + padding);
+						sent.incrementAndGet();
+					}
+					produced.addAndGet(threads().getCurrentThreadAllocatedBytes() - before);
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}, "load-producer-" + p));
+		}
+		var allocatedBefore = allocated();
+		long start = System.nanoTime();
+		consumerThreads.forEach(Thread::start);
+		producerThreads.forEach(Thread::start);
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		stop.set(true);
+		for(var t : producerThreads)
+			t.join();
+		long drainBy = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while(received(standIns) < sent.get())
+		{
+			if(System.nanoTime() - drainBy > 0)
+				throw new IllegalStateException("Only " + received(standIns) + " of " + sent.get()
+					+ " action sequences were consumed");
+			Thread.sleep(1);
+		}
+		long nanos = System.nanoTime() - start;
+		long allocated = produced.get();
+		for(var thread : allocated().entrySet())
+			allocated += thread.getValue() - allocatedBefore.getOrDefault(thread.getKey(), 0L);
+		standIns.forEach(KeySenderStandIn::stop);
+		for(var t : consumerThreads)
+			t.join();
+		return new Result(sent.get(), nanos, latency, allocated);
+	}
+	
+	static com.sun.management.ThreadMXBean threads()
+	{
+		return (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	}
+	
+	/**
+	 * @return How many bytes each live platform thread has allocated, keyed by
+	 *         thread id. Virtual threads allocate on their carriers.
+	 */
+	static Map<Long, Long> allocated()
+	{
+		var allocated = new HashMap<Long, Long>();
+		for(Thread t : Thread.getAllStackTraces().keySet())
+		{
+			long bytes = threads().getThreadAllocatedBytes(t.getId());
+			if(bytes >= 0)
+				allocated.put(t.getId(), bytes);
+		}
+		return allocated;
+	}
+	
+	private static long received(List<KeySenderStandIn> standIns)
+	{
+		long received = 0;
+		for(var standIn : standIns)
+			received += standIn.received();
+		return received;
+	}
+	
+	static class Result
+	{
+		final long actions;
+		final long nanos;
+		final Histogram latency;
+		final long allocated;
+		
+		Result(long actions, long nanos, Histogram latency, long allocated)
+		{
+			this.actions = actions;
+			this.nanos = nanos;
+			this.latency = latency;
+			this.allocated = allocated;
+		}
+	}
+	
+	/**
+	 * Counts nanosecond values in buckets that are exact below 64, and split
+	 * each power of two into 64 above, so that any value is known to within
+	 * about 1.6% without storing it
+	 */
+	static class Histogram
+	{
+		private static final int SUB_BUCKETS = 64;
+		private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * 58);
+		
+		void record(long nanos)
+		{
+			counts.incrementAndGet(index(Math.max(0, nanos)));
+		}
+		
+		/**
+		 * @return The highest value of the bucket holding the given fraction of
+		 *         every value recorded, or 0 if none were
+		 */
+		long percentile(double fraction)
+		{
+			long total = 0;
+			for(int i = 0; i < counts.length(); ++i)
+				total += counts.get(i);
+			long rank = Math.max(1, (long)Math.ceil(fraction * total));
+			long seen = 0;
+			for(int i = 0; i < counts.length(); ++i)
+			{
+				seen += counts.get(i);
+				if(seen >= rank)
+					return highest(i);
+			}
+			return 0;
+		}
+		
+		static int index(long value)
+		{
+			if(value < SUB_BUCKETS)
+				return (int)value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+			return SUB_BUCKETS * ( shift + 1 ) + (int)( value >>> shift ) - SUB_BUCKETS;
+		}
+		
+		static long highest(int index)
+		{
+			if(index < SUB_BUCKETS)
+				return index;
+			int shift = index / SUB_BUCKETS - 1;
+			return ( (long)( index % SUB_BUCKETS + SUB_BUCKETS + 1 ) << shift ) - 1;
+		}
+	}
+}
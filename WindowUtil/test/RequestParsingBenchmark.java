@@ -0,0 +1,152 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import test.KeySenderStandIn.Response;
+import window.Server;
+import window.ServerEngine;
+
+/**
+ * Measures how quickly the key server reads requests, and how much it
+ * allocates per request: each connection pipelines polls of the kind KeySender
+ * sends, with a typical set of headers, and the bytes allocated by the
+ * server's connection threads are read off the JVM. Nothing is queued, so
+ * every response is empty and the cost is dominated by reading the request.
+ * Run from the project directory so that {@code winUtil.config} is found.
+ * 
+ * <pre>
+ * java test.RequestParsingBenchmark [connections] [rounds]
+ * </pre>
+ * 
+ * @author ratha
+ */
+class RequestParsingBenchmark
+{
+	static final String REQUEST = "GET /actionsequence?wait=0 HTTP/1.1\r\n"
+		+ "Host: localhost:6060\r\n"
+		+ "User-Agent: AutoHotkey\r\n"
+		+ "Accept: */*\r\n"
+		+ "Accept-Encoding: identity\r\n"
+		+ "Cache-Control: no-cache\r\n"
+		+ "Connection: keep-alive\r\n\r\n";
+	/**
+	 * How many requests are written at once before their responses are read
+	 */
+	static final int PIPELINE = 50;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		// stay under keep-alive-max, so that every connection lasts the round
+		int requests = 900 / PIPELINE * PIPELINE;
+		if(!Server.serve(true, ServerEngine.THREAD_PER_CONNECTION))
+			throw new IllegalStateException("Could not start the key server");
+		for(int run = 0; run < 2; ++run)
+		{
+			long nanos = 0, allocated = 0, served = 0;
+			for(int round = 0; round < rounds; ++round)
+			{
+				long[] result = round(connections, requests);
+				nanos += result[0];
+				allocated += result[1];
+				served += (long)connections * requests;
+			}
+			// the first run only warms up
+			if(run == 0)
+				continue;
+			System.out.printf("%d requests over %d connections: %9.0f requests/s, %6.0f bytes allocated per request%n",
+				served, connections, served * 1e9 / nanos, (double)allocated / served);
+		}
+		Server.shutdown();
+	}
+	
+	/**
+	 * Opens the connections, sends {@code requests} polls down each, and closes
+	 * them
+	 * 
+	 * @return The nanoseconds taken, and the bytes allocated by the server
+	 */
+	static long[] round(int connections, int requests) throws Exception
+	{
+		var sockets = new ArrayList<Socket>();
+		var responses = new ArrayList<InputStream>();
+		for(int c = 0; c < connections; ++c)
+		{
+			var s = new Socket("localhost", Server.port());
+			s.setTcpNoDelay(true);
+			sockets.add(s);
+			responses.add(new BufferedInputStream(s.getInputStream()));
+			// one request first, so that the server has started the connection's thread
+			pipeline(s, responses.get(c), 1);
+		}
+		var before = allocated();
+		long start = System.nanoTime();
+		var clients = new ArrayList<Thread>();
+		for(int c = 0; c < connections; ++c)
+		{
+			var s = sockets.get(c);
+			var in = responses.get(c);
+			var t = new Thread(() ->
+			{
+				try
+				{
+					for(int sent = 1; sent + PIPELINE <= requests; sent += PIPELINE)
+						pipeline(s, in, PIPELINE);
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			});
+			clients.add(t);
+			t.start();
+		}
+		for(var t : clients)
+			t.join();
+		long nanos = System.nanoTime() - start;
+		var after = allocated();
+		long bytes = 0;
+		for(var thread : after.entrySet())
+			if(before.containsKey(thread.getKey()))
+				bytes += thread.getValue() - before.get(thread.getKey());
+		for(var s : sockets)
+			s.close();
+		return new long[] { nanos, bytes };
+	}
+	
+	static void pipeline(Socket s, InputStream in, int count) throws Exception
+	{
+		OutputStream out = s.getOutputStream();
+		out.write(REQUEST.repeat(count).getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		for(int i = 0; i < count; ++i)
+			Response.read(in);
+	}
+	
+	/**
+	 * @return How many bytes each of the server's connection threads has
+	 *         allocated, keyed by thread id
+	 */
+	static Map<Long, Long> allocated()
+	{
+		var threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		var allocated = new HashMap<Long, Long>();
+		for(Thread t : Thread.getAllStackTraces().keySet())
+		{
+			if(!t.getName().startsWith("key-server-connection"))
+				continue;
+			long bytes = threads.getThreadAllocatedBytes(t.getId());
+			if(bytes >= 0)
+				allocated.put(t.getId(), bytes);
+		}
+		return allocated;
+	}
+}
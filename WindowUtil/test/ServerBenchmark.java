@@ -0,0 +1,170 @@
+package test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import window.Client;
+import window.PushConsumer;
+import window.RingConsumer;
+import window.Server;
+import window.ServerEngine;
+
+/**
+ * Compares the throughput of each {@link ServerEngine}, with and without
+ * persistent connections and long polling: producers post action sequences through
+ * {@link Client} while a {@link KeySenderStandIn} polls them back out, and the
+ * time until every sequence has been consumed is reported. Streaming the
+ * sequences to a {@link PushConsumer} instead of polling is measured as well,
+ * and so is posting without HTTP from producers in the server's JVM, and
+ * reading the sequences from a ring file with a {@link RingConsumer}.
+ * Run from the project directory so that {@code winUtil.config} is found.
+ * 
+ * <pre>
+ * java test.ServerBenchmark [actions] [producers]
+ * </pre>
+ * 
+ * @author ratha
+ */
+class ServerBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int actions = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		int producers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		// warm up every configuration before measuring any
+		for(int run = 0; run < 2; ++run)
+		{
+			for(var engine : ServerEngine.values())
+			{
+				if(!engine.isAvailable())
+					continue;
+				for(int mode = 0; mode < 6; ++mode)
+				{
+					boolean keepAlive = mode > 0;
+					long wait = mode >= 2 ? 1000 : 0;
+					boolean push = mode == 3 || mode == 4;
+					boolean ring = mode == 5;
+					Client.setInProcess(mode == 4);
+					Result r = measure(engine, keepAlive, wait, push, ring, run == 0 ? actions / 10 : actions,
+						producers);
+					if(run == 0)
+						continue;
+					System.out.printf(
+						"%-22s %-10s %-10s %-9s %8d actions in %6d ms: %9.0f actions/s, %8d polls, %6d threads started, %6.1f requests/connection%n",
+						engine, keepAlive ? "keep-alive" : "close", Client.isInProcess() ? "in-process" : "http",
+						ring ? "ring" : push ? "push" : wait > 0 ? "long-poll" : "busy-poll",
+						actions, r.millis, actions * 1000.0 / r.millis, r.polls, r.threads, r.reuse);
+				}
+			}
+		}
+	}
+	
+	static Result measure(ServerEngine engine, boolean keepAlive, long wait, boolean push, boolean ring,
+		int actions, int producers) throws Exception
+	{
+		// the previous run's port may take a moment to be released
+		for(int attempt = 0; !Server.serve(true, engine); ++attempt)
+		{
+			if(attempt == 50)
+				throw new IllegalStateException("Could not start the key server");
+			Thread.sleep(100);
+		}
+		var threads = ManagementFactory.getThreadMXBean();
+		long startedBefore = threads.getTotalStartedThreadCount();
+		long connectionsBefore = Server.connections();
+		long requestsBefore = Server.requests();
+		Path file = ring ? Files.createTempFile("ring", ".bin") : null;
+		if(ring && !Server.serveRing(file))
+			throw new IllegalStateException("Could not create the ring");
+		// streaming is off unless configured, and stops with the server
+		if(push && !Server.servePush(0))
+			throw new IllegalStateException("Could not start streaming");
+		boolean stream = push || ring;
+		var consumer = stream ? null : new KeySenderStandIn(Server.port(), keepAlive, wait);
+		var pushed = new AtomicLong();
+		var consumerThread = new Thread(ring ? () ->
+		{
+			try
+			{
+				var c = new RingConsumer(file);
+				while(pushed.get() < actions)
+					if(c.poll(1000) != null)
+						pushed.incrementAndGet();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		} : push ? () ->
+		{
+			try (var c = new PushConsumer(Server.pushPort(), 64))
+			{
+				while(pushed.get() < actions)
+				{
+					c.ack(c.receive());
+					pushed.incrementAndGet();
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		} : consumer);
+		long start = System.nanoTime();
+		consumerThread.start();
+		var producerThreads = new ArrayList<Thread>();
+		for(int p = 0; p < producers; ++p)
+		{
+			int id = p;
+			var t = new Thread(() ->
+			{
+				try
+				{
+					for(int i = id; i < actions; i += producers)
+						Client.postSequence("Benchmark window " + id, "{Enter}" + i);
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			});
+			producerThreads.add(t);
+			t.start();
+		}
+		for(var t : producerThreads)
+			t.join();
+		while(( stream ? pushed.get() : consumer.received() ) < actions)
+			Thread.sleep(1);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if(!stream)
+			consumer.stop();
+		consumerThread.join();
+		long started = threads.getTotalStartedThreadCount() - startedBefore;
+		double reuse = (double)( Server.requests() - requestsBefore )
+			/ Math.max(1, Server.connections() - connectionsBefore);
+		Server.shutdown();
+		if(ring)
+			Files.delete(file);
+		return new Result(Math.max(1, millis), stream ? 0 : consumer.polls(), started, reuse);
+	}
+	
+	static class Result
+	{
+		final long millis;
+		final long polls;
+		final long threads;
+		final double reuse;
+		
+		Result(long millis, long polls, long threads, double reuse)
+		{
+			this.millis = millis;
+			this.polls = polls;
+			this.threads = threads;
+			this.reuse = reuse;
+		}
+	}
+}
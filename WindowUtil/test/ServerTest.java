@@ -0,0 +1,623 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import test.KeySenderStandIn.Response;
+import window.AsyncClient;
+import window.BatchingClient;
+import window.Client;
+import window.OverloadPolicy;
+import window.PushConsumer;
+import window.QueueFullException;
+import window.RingConsumer;
+import window.Server;
+import window.ServerEngine;
+
+class ServerTest
+{
+	private static boolean started;
+	
+	/**
+	 * Starts the key server once for every test, without KeySender, and
+	 * empties its queue, so that no test sees what another left behind. Client
+	 * posts and polls go over HTTP, unless a test hands them over in process.
+	 */
+	@BeforeEach
+	void serve() throws ReflectiveOperationException
+	{
+		Client.setInProcess(false);
+		synchronized(ServerTest.class)
+		{
+			if(!started)
+				started = Server.serve(true, ServerEngine.POOLED);
+		}
+		assertTrue(started, "The key server should be running");
+		clear();
+	}
+	
+	/**
+	 * Empties the server's queue through its package protected
+	 * {@code Server.clear()}
+	 * 
+	 * @return How many action sequences were dropped
+	 */
+	static int clear() throws ReflectiveOperationException
+	{
+		Method m = Server.class.getDeclaredMethod("clear");
+		m.setAccessible(true);
+		return (int)m.invoke(null);
+	}
+	
+	/**
+	 * @return The counters and gauges of {@code GET /metrics}, by name and
+	 *         labels
+	 */
+	static Map<String, Long> metrics() throws IOException
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, "GET /metrics HTTP/1.1\r\n\r\n");
+			var metrics = new HashMap<String, Long>();
+			for(String line : Response.read(in).body.split("\n"))
+				if(line.matches("key_server_\\S+ \\d+"))
+					metrics.put(line.substring(0, line.lastIndexOf(' ')),
+						Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+			return metrics;
+		}
+	}
+	
+	static void send(Socket s, String requests) throws IOException
+	{
+		s.getOutputStream().write(requests.getBytes(StandardCharsets.UTF_8));
+		s.getOutputStream().flush();
+	}
+	
+	static String post(String title, String sequence)
+	{
+		String body = title + "=" + sequence;
+		return "POST /actionsequence HTTP/1.1\r\nHost: localhost\r\nContent-Length: "
+			+ body.length() + "\r\n\r\n" + body;
+	}
+	
+	static final String GET = "GET /actionsequence HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	
+	@Test
+	void testPipelinedRequestsShareConnection() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, post("Pipelined", "a") + GET + GET);
+			Response accepted = Response.read(in);
+			Response first = Response.read(in);
+			Response second = Response.read(in);
+			assertEquals("HTTP/1.1 200 OK", accepted.status);
+			assertEquals("Pipelined=a", first.body);
+			assertEquals("", second.body);
+			assertTrue(second.keepAlive, "HTTP/1.1 connections should persist");
+			assertTrue(second.headers.contains("X-Connection-Requests: 3"),
+				"Three requests should have been served on one connection");
+		}
+	}
+	
+	@Test
+	void testConnectionCloseIsHonored() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, "GET /actionsequence HTTP/1.1\r\nConnection: close\r\n\r\n" + GET);
+			Response r = Response.read(in);
+			assertFalse(r.keepAlive, "The server should agree to close the connection");
+			assertEquals(-1, in.read(), "Requests after Connection: close should be ignored");
+		}
+	}
+	
+	@Test
+	void testHttp10ClosesByDefault() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, "GET /actionsequence HTTP/1.0\r\n\r\n");
+			assertFalse(Response.read(in).keepAlive, "HTTP/1.0 connections should close");
+			assertEquals(-1, in.read());
+		}
+	}
+	
+	@Test
+	void testLongPollWakesOnPost() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			long start = System.nanoTime();
+			send(s, "GET /actionsequence?wait=10000 HTTP/1.1\r\n\r\n");
+			Thread.sleep(200);
+			Client.postSequence("Long poll", "b");
+			Response r = Response.read(in);
+			long millis = (System.nanoTime() - start) / 1_000_000;
+			assertEquals("Long poll=b", r.body);
+			assertTrue(millis >= 200 && millis < 10000, "The poll should park until the post");
+		}
+	}
+	
+	@Test
+	void testLongPollTimesOut() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			long start = System.nanoTime();
+			send(s, "GET /actionsequence?wait=300 HTTP/1.1\r\n\r\n");
+			assertEquals("", Response.read(in).body);
+			assertTrue(System.nanoTime() - start >= 300_000_000L, "The poll should wait out its timeout");
+		}
+	}
+	
+	@Test
+	void testReadyOnceDrained() throws Exception
+	{
+		var consumer = new KeySenderStandIn(Server.port(), true, 0);
+		Client.postSequence("Ready", "c");
+		assertFalse(Server.ready(), "A queued sequence should keep the server busy");
+		assertEquals("Ready=c", consumer.poll());
+		assertFalse(Server.ready(), "A handed out sequence should keep the server busy");
+		assertEquals("", consumer.poll());
+		assertTrue(Server.awaitReady(1000), "An empty poll should mark the server ready");
+		assertTrue(Server.ready());
+	}
+	
+	@Test
+	void testBatchPostAndDrain() throws Exception
+	{
+		var batch = new ArrayList<Map.Entry<String, String>>();
+		for(int i = 0; i < 5; ++i)
+			batch.add(Map.entry(i % 2 == 0 ? "Batch & co" : "Other=window", "{Tab}" + i));
+		Client.postSequences(batch);
+		assertEquals(batch.subList(0, 3), Client.pollSequences(3, 0));
+		assertEquals(batch.subList(3, 5), Client.pollSequences(10, 0));
+		assertEquals(List.of(), Client.pollSequences(10, 0));
+	}
+	
+	@Test
+	void testMalformedBatchIsRejectedWhole() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			String body = "Whole=a&Whole";
+			send(s, "POST /actionsequence/batch HTTP/1.1\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body + GET);
+			assertEquals("HTTP/1.1 400 Bad Request", Response.read(in).status);
+			assertEquals("", Response.read(in).body, "No part of the batch should be queued");
+		}
+	}
+	
+	@Test
+	void testMalformedPostIsRejected() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			for(String body : List.of("No separator", "Bad=escape%zz"))
+			{
+				send(s, "POST /actionsequence HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+				Response r = Response.read(in);
+				assertEquals("HTTP/1.1 400 Bad Request", r.status, body);
+				assertTrue(r.keepAlive, "The connection should stay open");
+			}
+			send(s, GET);
+			assertEquals("", Response.read(in).body, "Nothing should be queued");
+		}
+	}
+	
+	@Test
+	void testBusyWindowDoesNotStarveOthers() throws Exception
+	{
+		var batch = new ArrayList<Map.Entry<String, String>>();
+		for(int i = 0; i < 6; ++i)
+			batch.add(Map.entry("Chatty", "{Tab}" + i));
+		Client.postSequences(batch);
+		Client.postSequence("Quiet", "q");
+		assertEquals(Map.of("Chatty", 6, "Quiet", 1), Client.queueDepths());
+		assertEquals(List.of(batch.get(0), Map.entry("Quiet", "q")), Client.pollSequences(2, 0),
+			"The quiet window should not wait behind the chatty one");
+		assertEquals(Map.of("Chatty", 5), Server.depths());
+		assertEquals(batch.subList(1, 6), Client.pollSequences(10, 0));
+		assertEquals(Map.of(), Client.queueDepths());
+	}
+	
+	@Test
+	void testFullQueueRefusesPosts() throws Exception
+	{
+		var batch = new ArrayList<Map.Entry<String, String>>();
+		for(int i = 0; i <= Server.capacity(); ++i)
+			batch.add(Map.entry("Full", "{Tab}" + i));
+		assertThrows(QueueFullException.class, () -> Client.postSequences(batch, OverloadPolicy.FAIL_FAST),
+			"A batch larger than the queue should be refused");
+		assertEquals(Map.of(), Server.depths(), "No part of a refused batch should be queued");
+		
+		Client.postSequences(batch.subList(1, batch.size()), OverloadPolicy.FAIL_FAST);
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, post("Full", "extra"));
+			Response r = Response.read(in);
+			assertEquals("HTTP/1.1 503 Service Unavailable", r.status);
+			assertTrue(r.headers.contains("Retry-After: "), "Refused producers should be told when to retry");
+			assertTrue(r.keepAlive, "Refusing a post should not cost the connection");
+		}
+		assertThrows(QueueFullException.class, () -> Client.postSequence("Full", "extra", OverloadPolicy.RETRY));
+		assertEquals(Server.capacity(), clear());
+		Client.postSequence("Full", "room again", OverloadPolicy.FAIL_FAST);
+		assertEquals(List.of(Map.entry("Full", "room again")), Client.pollSequences(10, 0));
+	}
+	
+	@Test
+	void testUnsupportedRequestsKeepConnection() throws Exception
+	{
+		String page = Files.readString(Path.of("not_implemented.html"));
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, "DELETE /nothing HTTP/1.1\r\nContent-Length: 3\r\n\r\nabcGET /nothing HTTP/1.1\r\n\r\n");
+			for(int i = 0; i < 2; ++i)
+			{
+				Response r = Response.read(in);
+				assertEquals("HTTP/1.1 501 Not Implemented", r.status);
+				assertEquals(page, r.body);
+				assertTrue(r.keepAlive, "An unsupported request should not cost the connection");
+				assertTrue(r.headers.matches("(?s).*Date: \\w{3}, \\d{1,2} \\w{3} \\d{4} [\\d:]{8} GMT\n.*"),
+					"The date should be an HTTP date: " + r.headers);
+			}
+		}
+	}
+	
+	@Test
+	void testBodySplitAcrossReads() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			String request = post("Split", "{Enter}") + GET;
+			for(int split : new int[] { 20, request.indexOf("\r\n\r\n") + 2, request.length() - GET.length() - 3 })
+			{
+				send(s, request.substring(0, split));
+				Thread.sleep(50);
+				send(s, request.substring(split));
+				assertEquals("Action sequence accepted", Response.read(in).body);
+				assertEquals("Split={Enter}", Response.read(in).body);
+			}
+		}
+	}
+	
+	@Test
+	void testOversizedHeadersAreRefused() throws Exception
+	{
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, "GET /actionsequence HTTP/1.1\r\nX-Padding: " + "x".repeat(1 << 16) + "\r\n\r\n");
+			Response r = Response.read(in);
+			assertEquals("HTTP/1.1 431 Request Header Fields Too Large", r.status);
+			assertFalse(r.keepAlive, "The rest of an oversized request cannot be trusted");
+		}
+	}
+	
+	@Test
+	void testMetricsCountQueuedTime() throws Exception
+	{
+		Client.postSequence("Metrics", "m");
+		Thread.sleep(20);
+		assertEquals(List.of(Map.entry("Metrics", "m")), Client.pollSequences(1, 0));
+		try (var s = new Socket("localhost", Server.port()))
+		{
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			send(s, "GET /metrics HTTP/1.1\r\n\r\n");
+			Response r = Response.read(in);
+			assertTrue(r.headers.contains("Content-type: text/plain; version=0.0.4"));
+			assertTrue(r.body.contains("# TYPE key_server_action_queued_seconds histogram\n"), r.body);
+			assertTrue(r.body.matches("(?s).*\nkey_server_responses_total\\{code=\"200\"\\} [1-9].*"), r.body);
+			assertTrue(r.body.matches("(?s).*\nkey_server_action_queued_seconds_count [1-9].*"), r.body);
+			assertTrue(r.body.matches("(?s).*\nkey_server_action_queued_seconds_bucket\\{le=\"0\\.016384\"\\} (\\d+)\n.*"),
+				r.body);
+			// a sequence that waited 20 ms cannot be counted in a bucket below 16 ms
+			long below = Long.parseLong(r.body.replaceAll(
+				"(?s).*\nkey_server_action_queued_seconds_bucket\\{le=\"0\\.016384\"\\} (\\d+)\n.*", "$1"));
+			long total = Long.parseLong(r.body.replaceAll("(?s).*\nkey_server_action_queued_seconds_count (\\d+)\n.*", "$1"));
+			assertTrue(below < total, "The queued time should have been recorded");
+		}
+	}
+	
+	@Test
+	void testPushStreamsWithinCredit() throws Exception
+	{
+		assertTrue(Server.servePush(0));
+		try
+		{
+			var consumer = new PushConsumer(Server.pushPort(), 1);
+			Client.postSequence("Push", "a");
+			Client.postSequence("Push", "b");
+			PushConsumer.Delivery first = consumer.receive();
+			assertEquals("Push=a", first.toString());
+			Thread.sleep(100);
+			assertEquals(Map.of("Push", 1), Server.depths(), "Nothing should be sent beyond the credit");
+			consumer.ack(first);
+			assertEquals("Push=b", consumer.receive().toString());
+			consumer.close();
+			// the server notices the consumer hang up on its own time
+			assertEquals(List.of(Map.entry("Push", "b")), Client.pollSequences(10, 2000),
+				"A sequence never acknowledged should be queued again");
+		}
+		finally
+		{
+			Server.stopPush();
+		}
+	}
+	
+	@Test
+	void testRingHandsEachSequenceToOneConsumer() throws Exception
+	{
+		Path file = Files.createTempFile("ring", ".bin");
+		try
+		{
+			assertTrue(Server.serveRing(file));
+			var consumers = List.of(new RingConsumer(file), new RingConsumer(file));
+			String longSequence = "{Enter}".repeat(200);
+			Client.postSequence("Ring", "a");
+			Client.postSequence("Ring", longSequence);
+			Client.postSequence("Ring", "c");
+			assertEquals(Map.entry("Ring", "a"), consumers.get(0).poll(2000));
+			assertEquals(Map.entry("Ring", longSequence), consumers.get(1).poll(2000),
+				"A sequence longer than a slot should span several");
+			assertEquals(Map.entry("Ring", "c"), consumers.get(0).poll(2000));
+			assertEquals(null, consumers.get(1).poll(50));
+		}
+		finally
+		{
+			Server.stopRing();
+			Files.delete(file);
+		}
+		Client.postSequence("Ring", "d");
+		assertEquals(List.of(Map.entry("Ring", "d")), Client.pollSequences(10, 0),
+			"Sequences should be handed out over HTTP once the ring is stopped");
+	}
+	
+	@Test
+	void testLeasesKeepWindowOrderAndRedeliver() throws Exception
+	{
+		Client.postSequences(List.of(Map.entry("Ordered", "a"), Map.entry("Ordered", "b"),
+			Map.entry("Other", "c")));
+		Client.Lease first = Client.leaseSequence(300, 0);
+		assertEquals("Ordered=a", first.toString());
+		Client.Lease other = Client.leaseSequence(300, 0);
+		assertEquals("Other=c", other.toString(), "A leased window should hold back its next sequence");
+		assertEquals(null, Client.leaseSequence(300, 0));
+		assertTrue(Client.acknowledge(other));
+		
+		Client.Lease again = Client.leaseSequence(300, 2000);
+		assertEquals("Ordered=a", again.toString(), "A lease that runs out should be handed out again");
+		assertFalse(Client.acknowledge(first), "A lease that ran out should not be acknowledged");
+		assertTrue(Client.acknowledge(again));
+		Client.Lease last = Client.leaseSequence(300, 0);
+		assertEquals("Ordered=b", last.toString());
+		assertTrue(Client.acknowledge(last));
+		assertEquals(Map.of(), Client.queueDepths());
+	}
+	
+	@Test
+	void testPriorityAndDeadline() throws Exception
+	{
+		long expired = Server.expired();
+		Client.postSequences(List.of(Map.entry("Bulk", "1"), Map.entry("Bulk", "2")));
+		Client.postSequence("Bulk", "stale", 0, 50);
+		Client.postSequence("Bulk", "urgent", 5, 0);
+		Client.postSequence("Other", "soon", 1, 0);
+		Thread.sleep(100);
+		assertEquals(List.of(Map.entry("Bulk", "urgent"), Map.entry("Other", "soon"), Map.entry("Bulk", "1"),
+			Map.entry("Bulk", "2")), Client.pollSequences(10, 0),
+			"Higher priorities should go first, and the expired sequence be dropped");
+		assertEquals(expired + 1, Server.expired());
+	}
+	
+	@Test
+	void testCoalescingReplacesQueuedSequence() throws Exception
+	{
+		long coalesced = Server.coalesced();
+		Client.coalesceSequence("Coalesced", "refresh", "{F5}");
+		Client.postSequence("Coalesced", "typed");
+		Client.coalesceSequence("Coalesced", "refresh", "^{F5}");
+		assertEquals(Map.of("Coalesced", 2), Server.depths());
+		assertEquals(coalesced + 1, Server.coalesced());
+		assertEquals(List.of(Map.entry("Coalesced", "^{F5}"), Map.entry("Coalesced", "typed")),
+			Client.pollSequences(10, 0), "The newer sequence should take the place of the one it replaced");
+		Client.coalesceSequence("Coalesced", "refresh", "{F5}");
+		assertEquals(List.of(Map.entry("Coalesced", "{F5}")), Client.pollSequences(10, 0),
+			"A sequence already handed out should not be replaced");
+	}
+	
+	@Test
+	void testAsyncClientPostsWithinInFlightCap() throws Exception
+	{
+		var client = new AsyncClient(4, Duration.ofSeconds(5), OverloadPolicy.FAIL_FAST);
+		var posts = new ArrayList<CompletableFuture<Void>>();
+		for(int i = 0; i < 100; ++i)
+			posts.add(client.postSequence("Async", "" + i));
+		CompletableFuture.allOf(posts.toArray(CompletableFuture<?>[]::new)).get(10, TimeUnit.SECONDS);
+		assertEquals(4, client.available(), "Every request should have left flight");
+		List<Map.Entry<String, String>> polled = client.pollSequences(1000, 0).get(10, TimeUnit.SECONDS);
+		assertEquals(100, polled.size());
+		assertEquals(100, polled.stream().map(Map.Entry::getValue).distinct().count(),
+			"Every sequence should have been queued once");
+		
+		// polls waiting on an empty queue hold every place in flight
+		var polls = new ArrayList<CompletableFuture<List<Map.Entry<String, String>>>>();
+		for(int i = 0; i < 4; ++i)
+			polls.add(client.pollSequences(1, 3000));
+		var capped = new CompletableFuture<CompletableFuture<Void>>();
+		new Thread(() ->
+		{
+			try
+			{
+				capped.complete(client.postSequence("Async", "capped"));
+			}
+			catch(InterruptedException e)
+			{
+				capped.completeExceptionally(e);
+			}
+		}).start();
+		Thread.sleep(200);
+		assertFalse(capped.isDone(), "A request beyond the cap should wait for one in flight to complete");
+		Client.postSequences(List.of(Map.entry("Async", "a"), Map.entry("Async", "b"), Map.entry("Async", "c"),
+			Map.entry("Async", "d")));
+		for(var poll : polls)
+			assertEquals(1, poll.get(10, TimeUnit.SECONDS).size());
+		capped.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+		assertEquals(List.of(Map.entry("Async", "capped")), Client.pollSequences(10, 0));
+	}
+	
+	@Test
+	void testBatchingClientAmortizesRequests() throws Exception
+	{
+		long requests = Server.requests();
+		var posts = new ArrayList<CompletableFuture<Void>>();
+		BatchingClient closed;
+		try (var client = new BatchingClient(100, 50, OverloadPolicy.FAIL_FAST))
+		{
+			for(int i = 0; i < 250; ++i)
+				posts.add(client.postSequence("Batched", "" + i));
+			client.flush();
+			for(var post : posts)
+				assertTrue(post.isDone() && !post.isCompletedExceptionally(), "Every sequence should be accepted");
+			closed = client;
+		}
+		assertThrows(IllegalStateException.class, () -> closed.postSequence("Batched", "late"),
+			"A closed client should refuse sequences");
+		assertTrue(Server.requests() - requests < 25, "Sequences should be sent in batches");
+		List<Map.Entry<String, String>> polled = Client.pollSequences(1000, 0);
+		assertEquals(250, polled.size());
+		assertEquals(Map.entry("Batched", "249"), polled.get(249), "Batches should leave in order");
+	}
+	
+	@Test
+	void testInProcessPostsKeepOrder() throws Exception
+	{
+		var posts = List.of(Map.entry("In process", "a"), Map.entry("In process", "b"),
+			Map.entry("Elsewhere", "c"));
+		Client.postSequences(posts);
+		Client.postSequence("In process", "d");
+		List<Map.Entry<String, String>> overHttp = Client.pollSequences(10, 0);
+		Client.setInProcess(true);
+		try
+		{
+			Client.postSequences(posts);
+			Client.postSequence("In process", "d");
+			assertEquals(overHttp, Client.pollSequences(10, 0),
+				"Sequences handed over in process should leave in the same order as over HTTP");
+		}
+		finally
+		{
+			Client.setInProcess(false);
+		}
+		assertEquals(List.of(Map.entry("In process", "a"), Map.entry("Elsewhere", "c"),
+			Map.entry("In process", "b"), Map.entry("In process", "d")), overHttp);
+	}
+	
+	@Test
+	void testInProcessFullQueueThrows() throws Exception
+	{
+		var batch = new ArrayList<Map.Entry<String, String>>();
+		for(int i = 0; i <= Server.capacity(); ++i)
+			batch.add(Map.entry("Full in process", "{Tab}" + i));
+		Client.setInProcess(true);
+		try
+		{
+			assertThrows(QueueFullException.class, () -> Client.postSequences(batch, OverloadPolicy.FAIL_FAST),
+				"A batch larger than the queue should be refused");
+			assertEquals(Map.of(), Server.depths(), "No part of a refused batch should be queued");
+			Client.postSequences(batch.subList(1, batch.size()), OverloadPolicy.FAIL_FAST);
+			assertThrows(QueueFullException.class,
+				() -> Client.postSequence("Full in process", "extra", OverloadPolicy.FAIL_FAST));
+			assertEquals(Server.capacity(), clear());
+		}
+		finally
+		{
+			Client.setInProcess(false);
+		}
+	}
+	
+	@Test
+	void testInProcessLeases() throws Exception
+	{
+		Client.postSequences(List.of(Map.entry("Leased in process", "a"), Map.entry("Leased in process", "b")));
+		long connections = metrics().get("key_server_connections_total");
+		Client.setInProcess(true);
+		try
+		{
+			Client.Lease first = Client.leaseSequence(300, 0);
+			assertEquals("Leased in process=a", first.toString());
+			assertEquals(null, Client.leaseSequence(300, 0), "A leased window should hold back its next sequence");
+			assertTrue(Client.acknowledge(first));
+			assertFalse(Client.acknowledge(first), "A lease should only be acknowledged once");
+			Client.Lease last = Client.leaseSequence(300, 0);
+			assertEquals("Leased in process=b", last.toString());
+			assertTrue(Client.acknowledge(last));
+		}
+		finally
+		{
+			Client.setInProcess(false);
+		}
+		assertEquals(connections + 1, (long)metrics().get("key_server_connections_total"),
+			"Only reading the metrics should have connected");
+	}
+	
+	@Test
+	void testInProcessMetricsMatchHttp() throws Exception
+	{
+		var posts = List.of(Map.entry("Counted", "a"), Map.entry("Counted", "b"));
+		Map<String, Long> before = metrics();
+		Client.postSequences(posts);
+		Client.postSequence("Counted", "c");
+		assertEquals(3, Client.pollSequences(10, 0).size());
+		Map<String, Long> overHttp = metrics();
+		Client.setInProcess(true);
+		try
+		{
+			Client.postSequences(posts);
+			Client.postSequence("Counted", "c");
+			assertEquals(3, Client.pollSequences(10, 0).size());
+		}
+		finally
+		{
+			Client.setInProcess(false);
+		}
+		Map<String, Long> inProcess = metrics();
+		assertEquals(1, inProcess.get("key_server_connections_total") - overHttp.get("key_server_connections_total"),
+			"Only reading the metrics should have connected");
+		for(String counter : List.of("key_server_requests_total", "key_server_responses_total{code=\"200\"}",
+			"key_server_actions_accepted_total", "key_server_action_queued_seconds_count"))
+			assertEquals(overHttp.get(counter) - before.get(counter), inProcess.get(counter) - overHttp.get(counter),
+				counter + " should count the same in process as over HTTP");
+	}
+}
\ No newline at end of file
@@ -3,21 +3,32 @@ package test;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.lang.reflect.Method;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.PatternSyntaxException;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import org.junit.jupiter.api.Test;
+import com.sun.jna.Pointer;
 import com.sun.jna.platform.win32.WinDef.HWND;
 import window.SearchType;
 import window.WinUtil;
+import window.WindowMapper;
+import window.WindowQuery;
+import window.WindowQuerySet;
 
 class WinUtilTest
 {
@@ -41,6 +52,94 @@ class WinUtilTest
 		frame.setVisible(false);
 	}
 	
+	@Test
+	void testGetTitle()
+	{
+		var frame = new JFrame("  This is a window whose title is read without padding "
+			+ "and nobody should make another frame with the same title "
+			+ "unless they want this test to maliciously fail  ");
+		frame.setVisible(true);
+		HWND h = WinUtil.getWindow("This is a window whose title is read without padding",
+			SearchType.START);
+		assertNotNull(h);
+		String title = frame.getTitle().trim();
+		if (WinUtil.TITLE_SEARCH_LENGTH > title.length())
+			assertEquals(title, WinUtil.getTitle(h), "The title should be trimmed to its real length");
+		assertEquals("This is a", WinUtil.getTitle(h, 11), "At most n characters should be read");
+		assertEquals(WinUtil.getTitle(h), WinUtil.withTitle(h, (view) ->
+		{
+			// reading another title meanwhile must not overwrite the view
+			WinUtil.getTitle(h, 4);
+			return view.toString();
+		}));
+		assertEquals("", WinUtil.getTitle(null));
+		frame.setVisible(false);
+	}
+	
+	@Test
+	void testWindowsStream()
+	{
+		var frame = new JFrame("This is a window found by streaming "
+			+ "and nobody should make another frame with the same title "
+			+ "unless they want this test to maliciously fail");
+		frame.setVisible(true);
+		var query = WindowQuery.compile("This is a window found by streaming", SearchType.START);
+		HWND h = WinUtil.getWindow(query);
+		assertNotNull(h);
+		var mapped = new ArrayList<HWND>();
+		assertEquals(h, WinUtil.windows().filter((window) ->
+		{
+			mapped.add(window);
+			return query.test(WinUtil.getTitle(window));
+		}).findFirst().orElse(null));
+		assertEquals(h, mapped.get(mapped.size() - 1), "No window after the first match should be mapped");
+		assertEquals(mapped.size(), mapped.stream().distinct().count(), "No window should be mapped twice");
+		assertEquals(1, WinUtil.windows().parallel().map(WinUtil::getTitle).filter(query).count(),
+			"A parallel stream should see every window once");
+		frame.setVisible(false);
+	}
+	
+	@Test
+	void testWindowMapperKeepsOrder() throws Exception
+	{
+		// a desktop of windows whose titles are held in memory instead of fetched
+		var desktop = new ArrayList<HWND>();
+		var titles = new HashMap<HWND, String>();
+		for (int i = 1; i <= 200; ++i)
+		{
+			var window = new HWND(new Pointer(i));
+			desktop.add(window);
+			titles.put(window, i % 10 == 0 ? null : "Window " + i);
+		}
+		for (boolean virtualThreads : new boolean[] { false, true })
+		{
+			try (var mapper = new WindowMapper(4, virtualThreads, () -> desktop))
+			{
+				var running = new AtomicInteger();
+				var mostRunning = new AtomicInteger();
+				List<String> mapped = mapper.map((window) ->
+				{
+					mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					// windows answer at different speeds
+					LockSupport.parkNanos(Pointer.nativeValue(window.getPointer()) % 7 * 100_000);
+					running.decrementAndGet();
+					return titles.get(window);
+				});
+				var expected = new ArrayList<String>();
+				for (var window : desktop)
+					if (titles.get(window) != null)
+						expected.add(titles.get(window));
+				assertEquals(expected, mapped, "Windows should be mapped in enumeration order, without nulls");
+				assertTrue(mostRunning.get() > 1 && mostRunning.get() <= 4,
+					"Windows should be mapped at most 4 at a time: " + mostRunning.get());
+				assertThrows(IllegalStateException.class, () -> mapper.map((window) ->
+				{
+					throw new IllegalStateException("The window went away");
+				}));
+			}
+		}
+	}
+	
 	//@formatter:off
 	@Test
 	void testMatchesSearch() throws Exception
@@ -82,6 +181,56 @@ class WinUtilTest
 		assertFalse((boolean)m.invoke(null,"M99009900Search", "M\\D+Search", SearchType.REGEX));
 	}//@formatter:on
 	
+	@Test
+	void testWindowQuery()
+	{
+		var regex = WindowQuery.compile("M\\d+Search", SearchType.REGEX);
+		assertTrue(regex.test("M99009900Search"));
+		assertFalse(regex.test("MatchingSearch"));
+		assertFalse(regex.test(null), "Null titles should never match");
+		var noCase = WindowQuery.compile("MaTcHiNgSeArCh", SearchType.EXACT_NO_CASE);
+		assertTrue(noCase.test("MatchingSearch"));
+		assertTrue(noCase.test("MATCHINGSEARCH"));
+		assertFalse(noCase.test("MatchingSearches"));
+		assertTrue(WindowQuery.compile("s", SearchType.EXACT_NO_CASE).test("\u017F"),
+			"Case should be folded as equalsIgnoreCase does");
+		assertFalse(WindowQuery.compile(null, SearchType.CONTAINS).test("MatchingSearch"));
+		assertTrue(WindowQuery.compile(null, SearchType.ALL).test(null));
+		assertThrows(PatternSyntaxException.class, () -> WindowQuery.compile("M(", SearchType.REGEX),
+			"Regular expressions should be compiled up front");
+		// a title read into a buffer, as withTitle hands it out
+		CharBuffer title = CharBuffer.wrap("[Matching - Search]".toCharArray(), 1, 17);
+		for (SearchType search : SearchType.values())
+			for (String query : new String[] { "Matching", "Search", "g - S", "Matching - Search", "MATCHING - SEARCH",
+				"M.* - \\w+", "Searching", "" })
+				assertEquals(WindowQuery.compile(query, search).test(title.toString()),
+					WindowQuery.compile(query, search).test(title), search + " " + query);
+	}
+	
+	@Test
+	void testWindowQuerySet()
+	{
+		var queries = new ArrayList<WindowQuery>();
+		for (String needle : new String[] { "he", "she", "his", "hers", "", "s", "\u00e9t\u00e9", null })
+			for (SearchType search : SearchType.values())
+				queries.add(WindowQuery.compile(needle, search));
+		queries.add(WindowQuery.compile("he", SearchType.CONTAINS));
+		var set = WindowQuerySet.compile(queries);
+		assertEquals(queries.size() - 1, set.queries().size(), "Equal queries should be kept once");
+		for (String title : new String[] { "ushers", "she", "hishers", "he", "", "\u00e9t\u00e9 - Notepad",
+			"Shell", null })
+		{
+			var expected = new ArrayList<WindowQuery>();
+			for (var query : set.queries())
+				if (query.test(title))
+					expected.add(query);
+			assertEquals(expected, set.matching(title), "Every query should match as it does alone: " + title);
+			if (title != null)
+				assertEquals(expected, set.matching(CharBuffer.wrap(" " + title + " ", 1, title.length() + 1)),
+					"Titles should match the same in a buffer: " + title);
+		}
+	}
+	
 	@Test
 	void testGetBounds()
 	{
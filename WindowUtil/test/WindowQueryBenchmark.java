@@ -0,0 +1,161 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import window.SearchType;
+import window.WindowQuery;
+import window.WindowQuerySet;
+
+/**
+ * Compares matching window titles by query string and {@link SearchType}, as
+ * {@code WinUtil.getWindows} did for every window, against matching them with
+ * a {@link WindowQuery} compiled once, and many queries tested one by one
+ * against a {@link WindowQuerySet}. The titles are generated, so that the
+ * comparison runs on any platform and without opening windows.
+ * 
+ * <pre>
+ * java test.WindowQueryBenchmark [titles] [rounds]
+ * </pre>
+ * 
+ * @author ratha
+ */
+class WindowQueryBenchmark
+{
+	static final String[] APPLICATIONS = { "Notepad", "Mozilla Firefox", "Visual Studio Code", "Command Prompt",
+		"File Explorer", "Microsoft Word", "Calculator", "Settings" };
+	static final String[] DOCUMENTS = { "report", "notes", "Untitled", "budget", "README", "index", "draft",
+		"Inbox" };
+	
+	public static void main(String[] args)
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		List<String> titles = titles(count);
+		Object[][] queries = { { "Firefox", SearchType.CONTAINS }, { "- Notepad", SearchType.END },
+			{ "report 42.txt - Notepad", SearchType.EXACT }, { "REPORT 42.TXT - NOTEPAD", SearchType.EXACT_NO_CASE },
+			{ "(report|notes) \\d+\\.txt - Notepad", SearchType.REGEX }, { "Inbox", SearchType.START } };
+		// the first run only warms up
+		for(int run = 0; run < 2; ++run)
+		{
+			for(Object[] q : queries)
+			{
+				String query = (String)q[0];
+				var search = (SearchType)q[1];
+				long start = System.nanoTime();
+				long matched = 0;
+				for(int round = 0; round < rounds; ++round)
+					for(String title : titles)
+						if(matches(title, query, search))
+							++matched;
+				long byString = System.nanoTime() - start;
+				start = System.nanoTime();
+				long compiled = 0;
+				for(int round = 0; round < rounds; ++round)
+				{
+					// compiled once per search, as getWindows does
+					var windowQuery = WindowQuery.compile(query, search);
+					for(String title : titles)
+						if(windowQuery.test(title))
+							++compiled;
+				}
+				long byQuery = System.nanoTime() - start;
+				if(compiled != matched)
+					throw new IllegalStateException(search + " matched " + compiled + " titles, not " + matched);
+				if(run == 0)
+					continue;
+				double titlesTested = (double)rounds * titles.size();
+				System.out.printf("%-14s %8d titles matched: %7.1f ns/title by string, %7.1f ns/title compiled, %5.1fx%n",
+					search, matched / rounds, byString / titlesTested, byQuery / titlesTested,
+					(double)byString / byQuery);
+			}
+			many(titles, rounds, run > 0);
+		}
+	}
+	
+	/**
+	 * Compares testing every title against many queries one at a time, as
+	 * calling {@code WinUtil.getWindows} once per query does, against testing it
+	 * against a {@link WindowQuerySet} of them in one pass
+	 */
+	static void many(List<String> titles, int rounds, boolean report)
+	{
+		var queries = new ArrayList<WindowQuery>();
+		for(String application : APPLICATIONS)
+		{
+			queries.add(WindowQuery.compile(application, SearchType.CONTAINS));
+			queries.add(WindowQuery.compile("- " + application, SearchType.END));
+		}
+		for(String document : DOCUMENTS)
+		{
+			queries.add(WindowQuery.compile(document, SearchType.START));
+			queries.add(WindowQuery.compile(document + " 7", SearchType.CONTAINS));
+			queries.add(WindowQuery.compile(document + " 7.txt - Notepad", SearchType.EXACT));
+		}
+		long start = System.nanoTime();
+		long matched = 0;
+		for(int round = 0; round < rounds; ++round)
+			for(var query : queries)
+				for(String title : titles)
+					if(query.test(title))
+						++matched;
+		long oneByOne = System.nanoTime() - start;
+		start = System.nanoTime();
+		long together = 0;
+		for(int round = 0; round < rounds; ++round)
+		{
+			var set = WindowQuerySet.compile(queries);
+			for(String title : titles)
+				together += set.matching(title).size();
+		}
+		long inOnePass = System.nanoTime() - start;
+		if(together != matched)
+			throw new IllegalStateException("The query set matched " + together + " times, not " + matched);
+		if(!report)
+			return;
+		double titlesTested = (double)rounds * titles.size();
+		System.out.printf("%2d queries     %8d matches:        %7.1f ns/title one by one, %7.1f ns/title in one pass, %5.1fx%n",
+			queries.size(), matched / rounds, oneByOne / titlesTested, inOnePass / titlesTested,
+			(double)oneByOne / inOnePass);
+	}
+	
+	/**
+	 * Matches a title the way {@link SearchType} does, from the query string
+	 */
+	static boolean matches(String title, String query, SearchType search)
+	{
+		switch(search)
+		{
+		case CONTAINS:
+			return title.contains(query);
+		case END:
+			return title.endsWith(query);
+		case EXACT:
+			return title.equals(query);
+		case EXACT_NO_CASE:
+			return title.equalsIgnoreCase(query);
+		case REGEX:
+			return title.matches(query);
+		case START:
+			return title.startsWith(query);
+		default:
+			throw new IllegalArgumentException(search.toString());
+		}
+	}
+	
+	/**
+	 * @return Titles such as windows of common applications have
+	 */
+	static List<String> titles(int count)
+	{
+		var random = new Random(42);
+		var titles = new ArrayList<String>(count);
+		for(int i = 0; i < count; ++i)
+		{
+			String application = APPLICATIONS[random.nextInt(APPLICATIONS.length)];
+			String document = DOCUMENTS[random.nextInt(DOCUMENTS.length)];
+			titles.add(document + " " + random.nextInt(100) + ".txt - " + application);
+		}
+		return titles;
+	}
+}